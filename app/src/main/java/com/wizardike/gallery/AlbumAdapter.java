@@ -0,0 +1,152 @@
+package com.wizardike.gallery;
+
+import android.app.Activity;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.widget.RecyclerView;
+import android.util.TypedValue;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.TextView;
+
+/**
+ * Shows albums as a grid of their cover thumbnails labelled with their names and image counts.
+ * Covers are loaded through the ImageEngine, so they share the memory cache with the photo grid.
+ * The first cell opens the groups of similar photos instead of an album.
+ */
+class AlbumAdapter extends RecyclerView.Adapter<AlbumAdapter.ViewHolder> {
+    // The item id of the similar photos cell, BUCKET_IDs are 32 bit so never clash with it
+    private static final long SIMILAR_PHOTOS_ID = Long.MIN_VALUE;
+
+    private final Activity activity;
+    private final ThumbnailCellBinder binder;
+    private final Drawable placeholder;
+    private AlbumIndex albums = AlbumIndex.EMPTY;
+    private OnAlbumClickListener onAlbumClickListener;
+    // The grid the adapter is attached to, its cell size picks the tier
+    private RecyclerView recyclerView;
+
+    /**
+     * The type of function that will be called when an album is clicked.
+     */
+    interface OnAlbumClickListener {
+        void onAlbumClick(AlbumIndex.Album album);
+
+        void onSimilarPhotosClick();
+    }
+
+    AlbumAdapter(Activity activity, ImageEngine engine, RequestGroup requests) {
+        this.activity = activity;
+        this.binder = new ThumbnailCellBinder(engine, requests);
+        this.placeholder = new ColorDrawable(ContextCompat.getColor(activity, R.color.thumbnailPlaceholder));
+        setHasStableIds(true);
+    }
+
+    /**
+     * Shows new albums. Must be called on the ui thread.
+     */
+    void setAlbums(AlbumIndex albums) {
+        this.albums = albums;
+        notifyDataSetChanged();
+    }
+
+    void setOnAlbumClickListener(OnAlbumClickListener listener) {
+        onAlbumClickListener = listener;
+    }
+
+    @Override
+    public int getItemCount() {
+        // Nothing to look through until there are albums
+        return albums.getCount() == 0 ? 0 : albums.getCount() + 1;
+    }
+
+    /**
+     * @return The album's BUCKET_ID, or SIMILAR_PHOTOS_ID for the first cell
+     */
+    @Override
+    public long getItemId(int position) {
+        return position == 0 ? SIMILAR_PHOTOS_ID : albums.get(position - 1).bucketId;
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        this.recyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        this.recyclerView = null;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        final FrameLayout layout = new FrameLayout(activity);
+        final ThumbnailCellView cover = new ThumbnailCellView(activity, placeholder);
+        layout.addView(cover, new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.WRAP_CONTENT));
+        final TextView label = new TextView(activity);
+        final int padding = activity.getResources().getDimensionPixelSize(R.dimen.album_label_padding);
+        label.setPadding(padding, padding, padding, padding);
+        label.setTextSize(TypedValue.COMPLEX_UNIT_SP, 14);
+        label.setTextColor(ContextCompat.getColor(activity, R.color.albumLabelText));
+        label.setBackgroundColor(ContextCompat.getColor(activity, R.color.albumLabelBackground));
+        layout.addView(label, new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.BOTTOM));
+        final ViewHolder vh = new ViewHolder(layout, new ThumbnailCellBinder.Cell(cover), label);
+        layout.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                final int position = vh.getAdapterPosition();
+                if(onAlbumClickListener == null || position == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                if(position == 0) {
+                    onAlbumClickListener.onSimilarPhotosClick();
+                } else {
+                    onAlbumClickListener.onAlbumClick(albums.get(position - 1));
+                }
+            }
+        });
+        return vh;
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder vh, int position) {
+        if(position == 0) {
+            binder.clear(vh.cover);
+            vh.label.setText(R.string.similar_photos);
+            return;
+        }
+        final AlbumIndex.Album album = albums.get(position - 1);
+        vh.label.setText(album.name + "\n" + activity.getResources().getQuantityString(
+                R.plurals.album_image_count, album.count, album.count));
+        if(album.coverPath == null) {
+            binder.clear(vh.cover);
+            return;
+        }
+        binder.bind(vh.cover, album.coverId, album.coverPath, album.coverOrientation,
+                ThumbnailCellBinder.getTier(recyclerView));
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder vh) {
+        binder.clear(vh.cover);
+    }
+
+    /**
+     * Stores the current information about an album's cell.
+     */
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final ThumbnailCellBinder.Cell cover;
+        final TextView label;
+
+        ViewHolder(View itemView, ThumbnailCellBinder.Cell cover, TextView label) {
+            super(itemView);
+            this.cover = cover;
+            this.label = label;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.wizardike.gallery;
+
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * The folders holding images, MediaStore buckets, in the order of their newest images. Each album
+ * has its name, how many images it holds and its newest image, which is shown as its cover.
+ * Built from one pass over the images newest first, so the first image seen in a bucket is its
+ * cover and albums are found in order. Updating only needs the images added since the last pass,
+ * see MediaStoreSync.updateAlbums.
+ * Immutable once built, so it can be handed from a worker thread to the ui thread.
+ */
+final class AlbumIndex {
+    static final AlbumIndex EMPTY = new AlbumIndex(new Album[0], 0, Long.MIN_VALUE, Long.MIN_VALUE);
+
+    /**
+     * A folder of images.
+     */
+    static final class Album {
+        // The MediaStore BUCKET_ID, images in the same folder share it
+        final long bucketId;
+        final String name;
+        // The newest image in the album
+        final long coverId;
+        final String coverPath;
+        final int coverOrientation;
+        // Only changed by the Builder that made the album
+        int count;
+
+        Album(long bucketId, String name, long coverId, String coverPath, int coverOrientation, int count) {
+            this.bucketId = bucketId;
+            this.name = name;
+            this.coverId = coverId;
+            this.coverPath = coverPath;
+            this.coverOrientation = coverOrientation;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Collects images into albums. Images must be added newest first.
+     */
+    static final class Builder {
+        private final AlbumIndex base;
+        // Albums in the order their newest images were added
+        private final ArrayList<Album> albums = new ArrayList<>();
+        private final LongSparseArray<Album> byBucket = new LongSparseArray<>();
+        private int imageCount;
+        private long newestDateAdded;
+        private long newestId;
+
+        /**
+         * @param base The albums from the last pass, images added must all be newer than it. Can be
+         *             EMPTY to start a full pass.
+         */
+        Builder(AlbumIndex base) {
+            this.base = base;
+            imageCount = base.imageCount;
+            newestDateAdded = base.newestDateAdded;
+            newestId = base.newestId;
+        }
+
+        /**
+         * Counts an image in an album that already has a newer image.
+         * @return False if no image has been added to the bucket yet, addAlbum must be called instead
+         */
+        boolean addToAlbum(long bucketId) {
+            final Album album = byBucket.get(bucketId);
+            if(album == null) {
+                return false;
+            }
+            ++album.count;
+            ++imageCount;
+            return true;
+        }
+
+        /**
+         * Adds the first image seen in a bucket, which becomes the album's cover.
+         */
+        void addAlbum(long bucketId, String name, long id, long dateAdded, String path, int orientation) {
+            if(albums.isEmpty()) {
+                newestDateAdded = dateAdded;
+                newestId = id;
+            }
+            final Album old = base.find(bucketId);
+            final Album album = new Album(bucketId, name, id, path, orientation, old == null ? 1 : old.count + 1);
+            albums.add(album);
+            byBucket.put(bucketId, album);
+            ++imageCount;
+        }
+
+        /**
+         * @return The number of images in every album, including the base's
+         */
+        int getImageCount() {
+            return imageCount;
+        }
+
+        AlbumIndex build() {
+            // Albums with new images are newer than every album that didn't get any
+            final ArrayList<Album> result = new ArrayList<>(albums);
+            for(Album album : base.albums) {
+                if(byBucket.get(album.bucketId) == null) {
+                    result.add(album);
+                }
+            }
+            return new AlbumIndex(result.toArray(new Album[result.size()]), imageCount, newestDateAdded, newestId);
+        }
+    }
+
+    private final Album[] albums;
+    private final int imageCount;
+    // The key of the newest image, images added after the index was built sort before it
+    private final long newestDateAdded;
+    private final long newestId;
+
+    private AlbumIndex(Album[] albums, int imageCount, long newestDateAdded, long newestId) {
+        this.albums = albums;
+        this.imageCount = imageCount;
+        this.newestDateAdded = newestDateAdded;
+        this.newestId = newestId;
+    }
+
+    int getCount() {
+        return albums.length;
+    }
+
+    Album get(int position) {
+        return albums[position];
+    }
+
+    /**
+     * @return The number of images in every album
+     */
+    int getImageCount() {
+        return imageCount;
+    }
+
+    long getNewestDateAdded() {
+        return newestDateAdded;
+    }
+
+    long getNewestId() {
+        return newestId;
+    }
+
+    private Album find(long bucketId) {
+        for(Album album : albums) {
+            if(album.bucketId == bucketId) {
+                return album;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,168 @@
+package com.wizardike.gallery;
+
+import android.Manifest;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+/**
+ * An activity that shows the folders holding images as albums. Selecting one shows a grid of
+ * just the images in that folder. A cell before the albums shows the groups of similar photos.
+ * The albums are found in one pass over the MediaStore when the activity starts, and when it
+ * resumes after the images have changed only the images added since are loaded to update them.
+ */
+public class AlbumsActivity extends AppCompatActivity {
+    private static final String TAG = "AlbumsActivity";
+    private static final int READ_EXTERNAL_STORAGE_REQUEST_CODE = 1;
+    // Roughly how wide an album's cell should be
+    private static final int CELL_WIDTH_DP = 180;
+
+    private ImageEngine engine;
+    // Cancelled when the activity is destroyed, the engine and its caches outlive it
+    private final RequestGroup requests = new RequestGroup();
+    private MediaStoreSync sync;
+    private AlbumAdapter adapter;
+    // null until the first pass over the images finishes
+    private AlbumIndex albums;
+    // The MediaStoreSync generation albums were last loaded at
+    private int syncedGeneration;
+    private boolean loading = false;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_albums);
+        engine = ImageEngine.get(this);
+
+        RecyclerView albumsView = findViewById(R.id.albums_view);
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        final int columns = Math.max(2, (int)(metrics.widthPixels / (CELL_WIDTH_DP * metrics.density)));
+        albumsView.setLayoutManager(new GridLayoutManager(this, columns));
+        albumsView.setHasFixedSize(true);
+        adapter = new AlbumAdapter(this, engine, requests);
+        adapter.setOnAlbumClickListener(new AlbumAdapter.OnAlbumClickListener() {
+            @Override
+            public void onAlbumClick(AlbumIndex.Album album) {
+                Intent intent = new Intent(AlbumsActivity.this, ViewAllPhotosActivity.class);
+                intent.putExtra(ViewAllPhotosActivity.EXTRA_BUCKET_ID, album.bucketId);
+                intent.putExtra(ViewAllPhotosActivity.EXTRA_BUCKET_NAME, album.name);
+                startActivity(intent);
+            }
+
+            @Override
+            public void onSimilarPhotosClick() {
+                Intent intent = new Intent(AlbumsActivity.this, ViewAllPhotosActivity.class);
+                intent.putExtra(ViewAllPhotosActivity.EXTRA_DUPLICATES, true);
+                startActivity(intent);
+            }
+        });
+        albumsView.setAdapter(adapter);
+
+        // Get permission to read images from the phone's storage
+        if (Build.VERSION.SDK_INT > 23 && checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE)
+                != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(
+                    new String[]{Manifest.permission.READ_EXTERNAL_STORAGE}, READ_EXTERNAL_STORAGE_REQUEST_CODE);
+        } else {
+            init();
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Covers are decoded on the same scheduler as the grid's thumbnails
+        ThumbnailWarmUpService.setGridVisible(true);
+        engine.onResume();
+        if(sync != null && (albums == null || sync.getGeneration() != syncedGeneration)) {
+            loadAlbums();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        ThumbnailWarmUpService.setGridVisible(false);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(sync != null) {
+            sync.close();
+        }
+        requests.cancelAll();
+    }
+
+    private void init() {
+        sync = new MediaStoreSync(getContentResolver());
+        loadAlbums();
+    }
+
+    /**
+     * Finds the albums on a worker thread, only loading the images added since the last time if
+     * there was one, and shows them.
+     */
+    private void loadAlbums() {
+        if(loading) {
+            return;
+        }
+        loading = true;
+        final AlbumIndex old = albums;
+        final int generation = sync.getGeneration();
+        engine.getScheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                AlbumIndex newAlbums = null;
+                try {
+                    newAlbums = old == null ? sync.queryAlbums() : sync.updateAlbums(old);
+                } catch (RuntimeException e) {
+                    // For example a SecurityException if the permission to read the images was revoked
+                    Log.w(TAG, "Unable to load the albums", e);
+                } finally {
+                    // Always posted so loading is reset even if the query failed
+                    showAlbums(newAlbums, generation);
+                }
+            }
+        });
+    }
+
+    /**
+     * Shows albums loaded by loadAlbums. Can be called on any thread.
+     * @param newAlbums The albums or null if they failed to load
+     */
+    private void showAlbums(final AlbumIndex newAlbums, final int generation) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                loading = false;
+                if(newAlbums == null || isFinishing()) {
+                    // Albums that failed to load are tried again when the activity next resumes
+                    return;
+                }
+                albums = newAlbums;
+                syncedGeneration = generation;
+                adapter.setAlbums(newAlbums);
+            }
+        });
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String permissions[],
+                                           @NonNull int[] grantResults) {
+        if(grantResults.length > 0
+                && grantResults[0] != PackageManager.PERMISSION_GRANTED) {
+            //User didn't give permission to read images, close the app
+            finish();
+        } else {
+            init();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.wizardike.gallery;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds bitmaps that are no longer used so that their memory can be reused by later decodes
+ * instead of being garbage collected and allocated again.
+ * Bitmaps are bucketed by their allocation size. Before KitKat a bitmap can only be reused for an
+ * image with exactly the same size and config.
+ * All methods are thread safe.
+ */
+class BitmapPool {
+    // A reused bitmap can be at most this many times larger than needed so memory isn't wasted
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    private long maxSize;
+    private long size = 0;
+
+    /**
+     * @param maxSize The maximum number of bytes of bitmaps to hold
+     */
+    BitmapPool(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Adds a bitmap to the pool. The bitmap must not be used by anything after it is added.
+     */
+    void put(Bitmap bitmap) {
+        if(bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        final int byteCount = getAllocationByteCount(bitmap);
+        synchronized (this) {
+            if(byteCount > maxSize) {
+                return;
+            }
+            ArrayDeque<Bitmap> bucket = buckets.get(byteCount);
+            if(bucket == null) {
+                bucket = new ArrayDeque<>();
+                buckets.put(byteCount, bucket);
+            }
+            bucket.addLast(bitmap);
+            size += byteCount;
+            trimToSize(maxSize);
+        }
+    }
+
+    /**
+     * Changes the maximum number of bytes of bitmaps to hold, dropping bitmaps if the pool holds
+     * more than that.
+     */
+    synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Gets a bitmap that can be used as BitmapFactory.Options.inBitmap to decode an image of the
+     * given size.
+     * @return A bitmap or null if there isn't a suitable one in the pool
+     */
+    Bitmap getForDecode(int width, int height, Bitmap.Config config) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return removeAtLeast(width * height * bytesPerPixel(config));
+        }
+        return removeExact(width, height, config);
+    }
+
+    /**
+     * Gets a bitmap with exactly the given size and config, erased to transparent.
+     * @return A bitmap or null if there isn't a suitable one in the pool
+     */
+    Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            bitmap = removeAtLeast(width * height * bytesPerPixel(config));
+            if(bitmap != null && (bitmap.getWidth() != width || bitmap.getHeight() != height
+                    || bitmap.getConfig() != config)) {
+                bitmap.reconfigure(width, height, config);
+            }
+        } else {
+            bitmap = removeExact(width, height, config);
+        }
+        if(bitmap != null) {
+            bitmap.eraseColor(0);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Gets a bitmap with exactly the given size and config from the pool or allocates one.
+     */
+    Bitmap getOrCreate(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Removes all bitmaps from the pool.
+     */
+    synchronized void clear() {
+        buckets.clear();
+        size = 0;
+    }
+
+    private void trimToSize(long maxSize) {
+        while(size > maxSize) {
+            // Drop the largest bitmaps first as they are the least likely to fit a request
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = buckets.lastEntry();
+            largest.getValue().removeFirst();
+            size -= largest.getKey();
+            if(largest.getValue().isEmpty()) {
+                buckets.remove(largest.getKey());
+            }
+        }
+    }
+
+    private synchronized Bitmap removeAtLeast(int byteCount) {
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.ceilingEntry(byteCount);
+        if(entry == null || entry.getKey() > byteCount * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+        Bitmap bitmap = entry.getValue().removeLast();
+        if(entry.getValue().isEmpty()) {
+            buckets.remove(entry.getKey());
+        }
+        size -= entry.getKey();
+        return bitmap;
+    }
+
+    private synchronized Bitmap removeExact(int width, int height, Bitmap.Config config) {
+        final int byteCount = width * height * bytesPerPixel(config);
+        ArrayDeque<Bitmap> bucket = buckets.get(byteCount);
+        if(bucket == null) {
+            return null;
+        }
+        for(Bitmap bitmap : bucket) {
+            if(bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+                bucket.remove(bitmap);
+                if(bucket.isEmpty()) {
+                    buckets.remove(byteCount);
+                }
+                size -= byteCount;
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    static int getAllocationByteCount(Bitmap bitmap) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if(config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if(config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
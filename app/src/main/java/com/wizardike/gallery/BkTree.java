@@ -0,0 +1,114 @@
+package com.wizardike.gallery;
+
+import java.util.Arrays;
+
+/**
+ * A BK-tree of perceptual hashes, for finding every hash within a distance of another without
+ * comparing it against all of them.
+ * Each child is stored at its distance from its parent. By the triangle inequality only children
+ * whose distance is within maxDistance of the query's distance from the parent can hold matches,
+ * so a search only walks a small part of the tree. Nodes are kept in parallel arrays so a tree of
+ * a hundred thousand images is a handful of objects.
+ * Not thread safe.
+ */
+final class BkTree {
+    private static final int NONE = -1;
+
+    /**
+     * Receives the items found by a search.
+     */
+    interface Visitor {
+        void onMatch(int item);
+    }
+
+    private long[] hashes;
+    private int[] items;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    // The distance of each node from its parent, at most 64
+    private byte[] distances;
+    private int size = 0;
+    private int[] stack = new int[64];
+
+    BkTree(int expectedSize) {
+        final int capacity = Math.max(expectedSize, 16);
+        hashes = new long[capacity];
+        items = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        distances = new byte[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds a hash.
+     * @param item Returned by searches that find the hash
+     */
+    void add(long hash, int item) {
+        if(size == hashes.length) {
+            grow();
+        }
+        final int node = size++;
+        hashes[node] = hash;
+        items[node] = item;
+        firstChildren[node] = NONE;
+        nextSiblings[node] = NONE;
+        if(node == 0) {
+            return;
+        }
+        int parent = 0;
+        while(true) {
+            final int distance = PerceptualHash.distance(hash, hashes[parent]);
+            int child = firstChildren[parent];
+            while(child != NONE && distances[child] != distance) {
+                child = nextSiblings[child];
+            }
+            if(child == NONE) {
+                distances[node] = (byte)distance;
+                nextSiblings[node] = firstChildren[parent];
+                firstChildren[parent] = node;
+                return;
+            }
+            parent = child;
+        }
+    }
+
+    /**
+     * Calls visitor with the item of every hash at most maxDistance bits from hash, including
+     * hash itself if it was added.
+     */
+    void search(long hash, int maxDistance, Visitor visitor) {
+        if(size == 0) {
+            return;
+        }
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while(stackSize != 0) {
+            final int node = stack[--stackSize];
+            final int distance = PerceptualHash.distance(hash, hashes[node]);
+            if(distance <= maxDistance) {
+                visitor.onMatch(items[node]);
+            }
+            for(int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+                if(Math.abs(distances[child] - distance) <= maxDistance) {
+                    if(stackSize == stack.length) {
+                        stack = Arrays.copyOf(stack, stackSize * 2);
+                    }
+                    stack[stackSize++] = child;
+                }
+            }
+        }
+    }
+
+    private void grow() {
+        final int capacity = hashes.length * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        items = Arrays.copyOf(items, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        distances = Arrays.copyOf(distances, capacity);
+    }
+}
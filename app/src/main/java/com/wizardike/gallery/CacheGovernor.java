@@ -0,0 +1,177 @@
+package com.wizardike.gallery;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+/**
+ * Sizes the thumbnail memory cache and bitmap pool for the device and the grid, and sheds
+ * thumbnails when the system is low on memory.
+ * The budget is a quarter of the app's memory class, but never more than the thumbnails of every
+ * image at the grid's tier need, so small libraries on large devices don't hold memory for nothing.
+ * When memory runs low thumbnails are shed in order of usefulness: offscreen thumbnails larger
+ * than the grid shows first, then smaller ones only kept as placeholders, then offscreen
+ * thumbnails at the grid's tier. The budget stays reduced until the activity next resumes.
+ * Must only be used on the ui thread.
+ */
+class CacheGovernor implements ComponentCallbacks2 {
+    // Part of the heap the memory cache can use, the bitmap pool gets a quarter of that again
+    private static final int HEAP_FRACTION = 4;
+    private static final int POOL_FRACTION = 4;
+    // Room for images to also be cached at the tiers next to the grid's, for zooming
+    private static final int TIER_OVERHEAD_PERCENT = 150;
+    // Screens of thumbnails kept however low memory is, so scrolling back a little doesn't decode
+    private static final int MIN_SCREENS = 2;
+
+    private final Context context;
+    private final ThumbnailMemoryCache cache;
+    private final BitmapPool pool;
+    private final long heapBudget;
+    private int imageCount = 0;
+    private int tier = ThumbnailTier.DEFAULT;
+    private int thumbnailFormat = ThumbnailFormat.MODE_QUALITY;
+    private int screenCells = 0;
+    // Each level of memory pressure halves the budget
+    private int pressureShift = 0;
+
+    /**
+     * @param context Any context of the app, the governor registers with the application context
+     */
+    CacheGovernor(Context context, ThumbnailMemoryCache cache, BitmapPool pool) {
+        this.context = context.getApplicationContext();
+        this.cache = cache;
+        this.pool = pool;
+        ActivityManager activityManager = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+        final long memoryClass = activityManager.getMemoryClass() * 1024L * 1024L;
+        heapBudget = Math.min(memoryClass, Runtime.getRuntime().maxMemory()) / HEAP_FRACTION;
+        cache.setMaxSize(heapBudget);
+        pool.setMaxSize(heapBudget / POOL_FRACTION);
+    }
+
+    /**
+     * Starts listening for onTrimMemory.
+     */
+    void register() {
+        context.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Resizes the budgets for the number of images in the grid.
+     */
+    void setImageCount(int imageCount) {
+        if(imageCount != this.imageCount) {
+            this.imageCount = imageCount;
+            updateBudgets();
+        }
+    }
+
+    /**
+     * Resizes the budgets for how dense the grid is.
+     * @param tier The ThumbnailTier the grid shows
+     * @param screenCells How many cells fit on the screen
+     */
+    void setGrid(int tier, int screenCells) {
+        if(tier != this.tier || screenCells != this.screenCells) {
+            final int oldTier = this.tier;
+            this.tier = tier;
+            this.screenCells = screenCells;
+            if(tier < oldTier && cache.size() > getCacheBudget()) {
+                // Zoomed out, the larger thumbnails are the least useful now
+                shed(getCacheBudget());
+            }
+            updateBudgets();
+        }
+    }
+
+    /**
+     * Resizes the budgets for the bitmap configs thumbnails are decoded in.
+     * @param mode One of the ThumbnailFormat modes
+     */
+    void setThumbnailFormat(int mode) {
+        if(mode != thumbnailFormat) {
+            thumbnailFormat = mode;
+            updateBudgets();
+        }
+    }
+
+    /**
+     * Restores the full budgets, called when the activity resumes as memory pressure has usually
+     * passed by then.
+     */
+    void onResume() {
+        if(pressureShift != 0) {
+            pressureShift = 0;
+            updateBudgets();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        Metrics.TRIM_MEMORY_CALLS.increment();
+        if(level >= TRIM_MEMORY_MODERATE) {
+            // Next in line to be killed, keeping anything just makes that more likely
+            final long size = cache.size();
+            cache.evictAll();
+            Metrics.BYTES_SHED.add(size);
+            pool.clear();
+            return;
+        }
+        if(level == TRIM_MEMORY_RUNNING_MODERATE || level == TRIM_MEMORY_UI_HIDDEN) {
+            // Only give up what the grid can't show at its current size
+            shedTiers(tier + 1, ThumbnailTier.COUNT - 1, 0);
+            if(level == TRIM_MEMORY_UI_HIDDEN) {
+                // Nothing decodes while hidden, so the pool is only holding memory
+                pool.clear();
+            }
+            return;
+        }
+        pressureShift = Math.max(pressureShift, level == TRIM_MEMORY_RUNNING_LOW ? 1 : 2);
+        shed(getCacheBudget());
+        updateBudgets();
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration configuration) {}
+
+    /**
+     * Sheds offscreen thumbnails, least useful tiers first, until the cache holds at most target bytes.
+     */
+    private void shed(long target) {
+        shedTiers(tier + 1, ThumbnailTier.COUNT - 1, target);
+        shedTiers(0, tier - 1, target);
+        shedTiers(tier, tier, target);
+    }
+
+    private void shedTiers(int minTier, int maxTier, long target) {
+        if(minTier > maxTier) {
+            return;
+        }
+        final long size = cache.size();
+        Metrics.EVICTIONS_UNDER_PRESSURE.add(cache.shed(target, minTier, maxTier));
+        Metrics.BYTES_SHED.add(size - cache.size());
+    }
+
+    private void updateBudgets() {
+        final long budget = getCacheBudget();
+        cache.setMaxSize(budget);
+        // The pool holds sampled images rather than thumbnails, so it doesn't shrink with the grid
+        pool.setMaxSize(pressureShift >= 2 ? 0 : (heapBudget / POOL_FRACTION) >> pressureShift);
+    }
+
+    private long getCacheBudget() {
+        final long thumbnailBytes = ThumbnailFormat.getThumbnailBytes(thumbnailFormat, tier);
+        long budget = heapBudget;
+        if(imageCount != 0) {
+            budget = Math.min(budget, imageCount * thumbnailBytes * TIER_OVERHEAD_PERCENT / 100);
+        }
+        budget >>= pressureShift;
+        final long minimum = Math.min(heapBudget, screenCells * thumbnailBytes * MIN_SCREENS);
+        return Math.max(budget, minimum);
+    }
+}
@@ -0,0 +1,365 @@
+package com.wizardike.gallery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs image decodes on a pool of worker threads, one per core.
+ * Work is run highest priority first and, within a priority, most recently submitted first so
+ * that the cells currently on screen are decoded before ones that were scrolled past.
+ * Requests with the same key share a single decode and requests that are cancelled before their
+ * decode starts are never run.
+ * All methods are thread safe.
+ */
+class DecodeScheduler implements Executor {
+    static final int PRIORITY_BACKGROUND = 0;
+    static final int PRIORITY_PREFETCH = 1;
+    static final int PRIORITY_VISIBLE = 2;
+    // Tiles of the photo being viewed, below URGENT so they don't hold up loading the list of images
+    static final int PRIORITY_TILE = 3;
+    static final int PRIORITY_URGENT = 4;
+    private static final int PRIORITY_COUNT = 5;
+    // java.util.logging rather than android.util.Log so the scheduler also runs on a plain JVM
+    private static final Logger LOGGER = Logger.getLogger("DecodeScheduler");
+
+    /**
+     * The work done by a request. Called on a worker thread.
+     */
+    interface Task<T> {
+        T run();
+    }
+
+    /**
+     * Receives the result of a request. Called on a worker thread.
+     */
+    interface Callback<T> {
+        void onResult(T result);
+    }
+
+    /**
+     * A handle to submitted work that can be used to cancel it.
+     */
+    static final class Request {
+        private final DecodeScheduler scheduler;
+        private final Callback<Object> callback;
+        private Job job;
+        private boolean cancelled = false;
+
+        private Request(DecodeScheduler scheduler, Callback<Object> callback) {
+            this.scheduler = scheduler;
+            this.callback = callback;
+        }
+
+        /**
+         * Stops the callback being called. The decode is also skipped if no other request needs it
+         * and it hasn't started yet.
+         */
+        void cancel() {
+            scheduler.cancel(this);
+        }
+
+        /**
+         * @return True if cancel has been called, a result already on its way is then dropped
+         */
+        boolean isCancelled() {
+            synchronized (scheduler) {
+                return cancelled;
+            }
+        }
+    }
+
+    /**
+     * A unit of work in the queue, shared by all requests with the same key.
+     */
+    private static final class Job {
+        final String key;
+        final Task<?> task;
+        final ArrayList<Request> requests = new ArrayList<>(1);
+        int priority;
+        long enqueueTime;
+        boolean running = false;
+        // Links in the queue for priority
+        Job previous;
+        Job next;
+
+        Job(String key, Task<?> task, int priority) {
+            this.key = key;
+            this.task = task;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * A snapshot of the scheduler's counters.
+     */
+    static final class Stats {
+        final int queueDepth;
+        final long submitted;
+        final long deduplicated;
+        final long cancelled;
+        final long completed;
+        final long totalWaitNanos;
+        final long maxWaitNanos;
+
+        private Stats(int queueDepth, long submitted, long deduplicated, long cancelled,
+                      long completed, long totalWaitNanos, long maxWaitNanos) {
+            this.queueDepth = queueDepth;
+            this.submitted = submitted;
+            this.deduplicated = deduplicated;
+            this.cancelled = cancelled;
+            this.completed = completed;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        /**
+         * @return The average time work waited in the queue before starting, in milliseconds
+         */
+        double averageWaitMillis() {
+            return completed == 0 ? 0.0 : totalWaitNanos / (completed * 1000000.0);
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + queueDepth + " submitted=" + submitted + " deduplicated=" + deduplicated
+                    + " cancelled=" + cancelled + " completed=" + completed
+                    + " averageWaitMs=" + averageWaitMillis() + " maxWaitMs=" + maxWaitNanos / 1000000.0;
+        }
+    }
+
+    private final Job[] queueHeads = new Job[PRIORITY_COUNT];
+    private final HashMap<String, Job> jobsByKey = new HashMap<>();
+    private final Thread[] workers;
+    private int queueDepth = 0;
+    private boolean shutdown = false;
+    private long submittedCount = 0;
+    private long deduplicatedCount = 0;
+    private long cancelledCount = 0;
+    private long completedCount = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+
+    /**
+     * Creates a DecodeScheduler with one worker thread per available core.
+     */
+    DecodeScheduler() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors()));
+    }
+
+    DecodeScheduler(int threadCount) {
+        workers = new Thread[threadCount];
+        for(int i = 0; i != threadCount; ++i) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, "DecodeScheduler-" + i);
+            worker.setDaemon(true);
+            // Keep decoding from competing with the ui thread
+            worker.setPriority(Thread.NORM_PRIORITY - 1);
+            workers[i] = worker;
+            worker.start();
+        }
+    }
+
+    /**
+     * Submits work to be run.
+     * @param key Identifies the work, requests with equal keys share one run of the first task
+     *            submitted. Can be null if the work shouldn't be shared.
+     * @param priority One of the PRIORITY_ constants
+     * @param task The work to do
+     * @param callback Called with the result of task unless the request is cancelled first
+     * @return A request that can be used to cancel the work
+     */
+    @SuppressWarnings("unchecked")
+    <T> Request submit(String key, int priority, Task<T> task, Callback<? super T> callback) {
+        Request request = new Request(this, (Callback<Object>)callback);
+        synchronized (this) {
+            if(shutdown) {
+                request.cancelled = true;
+                return request;
+            }
+            ++submittedCount;
+            Job job = key == null ? null : jobsByKey.get(key);
+            if(job != null) {
+                ++deduplicatedCount;
+                if(!job.running && priority > job.priority) {
+                    unlink(job);
+                    job.priority = priority;
+                    pushFront(job);
+                }
+            } else {
+                job = new Job(key, task, priority);
+                job.enqueueTime = System.nanoTime();
+                if(key != null) {
+                    jobsByKey.put(key, job);
+                }
+                pushFront(job);
+                notify();
+            }
+            request.job = job;
+            job.requests.add(request);
+        }
+        return request;
+    }
+
+    /**
+     * Runs a command at the highest priority. Used for work that something is waiting on, like
+     * loading the list of images.
+     */
+    @Override
+    public void execute(final Runnable command) {
+        submit(null, PRIORITY_URGENT, new Task<Void>() {
+            @Override
+            public Void run() {
+                command.run();
+                return null;
+            }
+        }, null);
+    }
+
+    private synchronized void cancel(Request request) {
+        if(request.cancelled) {
+            return;
+        }
+        request.cancelled = true;
+        Job job = request.job;
+        if(job == null) {
+            return;
+        }
+        job.requests.remove(request);
+        if(job.requests.isEmpty() && !job.running) {
+            unlink(job);
+            if(job.key != null) {
+                jobsByKey.remove(job.key);
+            }
+            ++cancelledCount;
+            Metrics.CANCELLED_TASKS.increment();
+        }
+    }
+
+    int getThreadCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return The number of jobs waiting to be run
+     */
+    synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    synchronized Stats getStats() {
+        return new Stats(queueDepth, submittedCount, deduplicatedCount, cancelledCount,
+                completedCount, totalWaitNanos, maxWaitNanos);
+    }
+
+    /**
+     * Drops all queued work and stops the worker threads once their current work finishes.
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        for(int i = 0; i != PRIORITY_COUNT; ++i) {
+            queueHeads[i] = null;
+        }
+        jobsByKey.clear();
+        queueDepth = 0;
+        notifyAll();
+    }
+
+    private void runWorker() {
+        while(true) {
+            Job job;
+            synchronized (this) {
+                job = takeHighestPriority();
+                while(job == null) {
+                    if(shutdown) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    job = takeHighestPriority();
+                }
+                job.running = true;
+                long waitNanos = System.nanoTime() - job.enqueueTime;
+                totalWaitNanos += waitNanos;
+                if(waitNanos > maxWaitNanos) {
+                    maxWaitNanos = waitNanos;
+                }
+                Metrics.QUEUE_WAIT.record(waitNanos);
+            }
+
+            Object result = null;
+            try {
+                result = job.task.run();
+            } catch (Throwable e) {
+                // A failed task delivers null, the thread carries on with the next job
+                LOGGER.log(Level.WARNING, "Task failed", e);
+            }
+            Request[] requests;
+            synchronized (this) {
+                ++completedCount;
+                if(job.key != null && jobsByKey.get(job.key) == job) {
+                    jobsByKey.remove(job.key);
+                }
+                requests = job.requests.toArray(new Request[job.requests.size()]);
+                job.requests.clear();
+            }
+            for(Request request : requests) {
+                if(request.callback != null) {
+                    try {
+                        request.callback.onResult(result);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Callback failed", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private Job takeHighestPriority() {
+        for(int priority = PRIORITY_COUNT - 1; priority >= 0; --priority) {
+            Job job = queueHeads[priority];
+            if(job != null) {
+                unlink(job);
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private void pushFront(Job job) {
+        Job head = queueHeads[job.priority];
+        job.previous = null;
+        job.next = head;
+        if(head != null) {
+            head.previous = job;
+        }
+        queueHeads[job.priority] = job;
+        ++queueDepth;
+    }
+
+    private void unlink(Job job) {
+        if(job.previous != null) {
+            job.previous.next = job.next;
+        } else if(queueHeads[job.priority] == job) {
+            queueHeads[job.priority] = job.next;
+        } else {
+            // not in a queue
+            return;
+        }
+        if(job.next != null) {
+            job.next.previous = job.previous;
+        }
+        job.previous = null;
+        job.next = null;
+        --queueDepth;
+    }
+}
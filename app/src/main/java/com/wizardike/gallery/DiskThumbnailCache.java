@@ -0,0 +1,481 @@
+package com.wizardike.gallery;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size limited, least recently used cache of thumbnails stored in a directory on disk.
+ * Every change to the cache is recorded in a journal file before and after it happens so that a
+ * crash part way through a write never leaves a half written thumbnail behind.
+ * Thumbnails are stored as compressed JPEGs, which are about a tenth of the size of the decoded
+ * bitmap and much faster to decode than the original photo.
+ * All methods are thread safe.
+ */
+class DiskThumbnailCache {
+    private static final String TAG = "DiskThumbnailCache";
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    private static final String MAGIC = "wizardike.gallery.DiskThumbnailCache";
+    // 2: thumbnails are rotated the right way up
+    private static final String VERSION = "2";
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    private static final int REDUNDANT_OPERATION_COMPACT_THRESHOLD = 2000;
+    private static final int JPEG_QUALITY = 85;
+    private static final String DIRECTORY = "thumbnails";
+    private static final long MAX_SIZE = 64 * 1024 * 1024;
+    private static DiskThumbnailCache shared;
+
+    private final File directory;
+    private final long maxSize;
+    // Access ordered so iteration starts at the least recently used thumbnail
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(0, 0.75f, true);
+    // Keys whose thumbnails are being written, so two threads never write the same temporary file
+    private final HashSet<String> writing = new HashSet<>();
+    private long size = 0;
+    private int redundantOperationCount = 0;
+    private Writer journalWriter;
+
+    /**
+     * Opens the cache in directory, creating it if it doesn't exist.
+     * Does disk IO so shouldn't be called on the ui thread.
+     * @param directory The directory to store thumbnails in. Nothing else should use this directory.
+     * @param maxSize The maximum number of bytes the stored thumbnails can take up.
+     */
+    DiskThumbnailCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        try {
+            open();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open the thumbnail cache, starting a new one", e);
+            deleteContents();
+            try {
+                rebuildJournal();
+            } catch (IOException e2) {
+                Log.e(TAG, "Unable to create a thumbnail cache, disk caching disabled", e2);
+                journalWriter = null;
+            }
+        }
+    }
+
+    /**
+     * Gets the cache used by the whole app, opening it the first time.
+     * Two caches must never use the same directory at once, so this should be used instead of
+     * the constructor. Does disk IO so shouldn't be called on the ui thread.
+     * @param cacheDirectory The app's cache directory
+     */
+    static synchronized DiskThumbnailCache getShared(File cacheDirectory) {
+        if(shared == null) {
+            shared = new DiskThumbnailCache(new File(cacheDirectory, DIRECTORY), MAX_SIZE);
+        }
+        return shared;
+    }
+
+    /**
+     * Gets a key that identifies a thumbnail of a file. The key changes when the file is modified.
+     * @param filename The file name of the full sized image
+     * @param thumbnailSize The width and height of the thumbnail
+     * @return The key or null if the file doesn't exist
+     */
+    static String getKey(String filename, int thumbnailSize) {
+        File file = new File(filename);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if(length == 0L && lastModified == 0L) {
+            return null;
+        }
+        // 64 bit FNV-1a hash of everything that affects the contents of the thumbnail
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0, count = filename.length(); i != count; ++i) {
+            hash = (hash ^ filename.charAt(i)) * 0x100000001b3L;
+        }
+        hash = mixHash(hash, length);
+        hash = mixHash(hash, lastModified);
+        hash = mixHash(hash, thumbnailSize);
+        return Long.toHexString(hash);
+    }
+
+    private static long mixHash(long hash, long value) {
+        for(int i = 0; i != 8; ++i) {
+            hash = (hash ^ (value & 0xff)) * 0x100000001b3L;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * Loads a thumbnail from the cache.
+     * @param key A key from getKey
+     * @param options Options to decode the thumbnail with, can be null
+     * @return The thumbnail or null if it isn't in the cache
+     */
+    Bitmap get(String key, BitmapFactory.Options options) {
+        if(key == null) {
+            return null;
+        }
+        final long expectedSize;
+        synchronized (this) {
+            final Long entrySize = entries.get(key);
+            if(journalWriter == null || entrySize == null) {
+                return null;
+            }
+            expectedSize = entrySize;
+            ++redundantOperationCount;
+            appendToJournal(READ, key);
+        }
+        // Writes aren't synced, so after a power cut a thumbnail the journal says is CLEAN can be cut
+        // short, and a truncated JPEG still decodes with its bottom missing.
+        File file = new File(directory, key);
+        if(file.length() != expectedSize) {
+            remove(key);
+            return null;
+        }
+        // The file could be removed after we leave the lock, in which case decoding fails and we
+        // return null as if it was never cached.
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        if(bitmap == null) {
+            remove(key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Checks if a thumbnail is in the cache without loading it.
+     */
+    synchronized boolean contains(String key) {
+        return key != null && entries.containsKey(key);
+    }
+
+    /**
+     * Stores a thumbnail in the cache, replacing any thumbnail with the same key.
+     * @param key A key from getKey
+     * @param bitmap The thumbnail to store
+     */
+    void put(String key, Bitmap bitmap) {
+        if(key == null || bitmap == null) {
+            return;
+        }
+        // Compress before taking the lock as it is the slow part
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(bitmap.getWidth() * bitmap.getHeight() / 4);
+        if(!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, encoded)) {
+            return;
+        }
+        putEncoded(key, encoded);
+    }
+
+    /**
+     * Stores an already compressed thumbnail in the cache, replacing any thumbnail with the same key.
+     */
+    void putEncoded(String key, ByteArrayOutputStream encoded) {
+        File file = new File(directory, key);
+        File tempFile = new File(directory, key + ".tmp");
+        synchronized (this) {
+            if(journalWriter == null || !writing.add(key)) {
+                return;
+            }
+            appendToJournal(DIRTY, key);
+            flushJournal();
+        }
+        // Written outside the lock so other threads can use the cache meanwhile. There's no fsync,
+        // a write cut short by a crash is still DIRTY in the journal so it is deleted on the next open,
+        // and one lost by a power cut after its CLEAN line was written is caught by get's size check.
+        boolean success = false;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            encoded.writeTo(out);
+            out.flush();
+            success = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write thumbnail " + key, e);
+        } finally {
+            closeQuietly(out);
+        }
+        success = success && tempFile.renameTo(file);
+        synchronized (this) {
+            writing.remove(key);
+            if(journalWriter == null) {
+                // Closed while writing, the DIRTY line gets the file deleted on the next open
+                return;
+            }
+            if(success) {
+                Long oldSize = entries.put(key, (long)encoded.size());
+                if(oldSize != null) {
+                    size -= oldSize;
+                    ++redundantOperationCount;
+                }
+                size += encoded.size();
+                appendToJournal(CLEAN, key + " " + encoded.size());
+            } else {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+                Long oldSize = entries.remove(key);
+                if(oldSize != null) {
+                    size -= oldSize;
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+                appendToJournal(REMOVE, key);
+            }
+            ++redundantOperationCount;
+            flushJournal();
+            trimToSize(maxSize);
+            compactJournalIfNeeded();
+        }
+    }
+
+    /**
+     * Removes a thumbnail from the cache if it is in it.
+     */
+    synchronized void remove(String key) {
+        Long oldSize = entries.remove(key);
+        if(oldSize == null || journalWriter == null) {
+            return;
+        }
+        size -= oldSize;
+        //noinspection ResultOfMethodCallIgnored
+        new File(directory, key).delete();
+        appendToJournal(REMOVE, key);
+        redundantOperationCount += 2;
+        flushJournal();
+        compactJournalIfNeeded();
+    }
+
+    /**
+     * @return The number of bytes used by cached thumbnails
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Closes the journal. Nothing can be loaded from or stored in the cache afterwards.
+     */
+    synchronized void close() {
+        closeQuietly(journalWriter);
+        journalWriter = null;
+    }
+
+    private void open() throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if(!journalFile.exists()) {
+            // A crash while compacting can leave only the temporary journal
+            File tempJournal = new File(directory, JOURNAL_FILE_TEMP);
+            if(!tempJournal.exists() || !tempJournal.renameTo(journalFile)) {
+                deleteContents();
+                rebuildJournal();
+                return;
+            }
+        }
+        readJournal(journalFile);
+        removeUnfinishedWrites();
+        journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+        trimToSize(maxSize);
+        compactJournalIfNeeded();
+    }
+
+    private void readJournal(File journalFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+        try {
+            if(!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+            int lineCount = 0;
+            String line;
+            while((line = reader.readLine()) != null) {
+                ++lineCount;
+                int firstSpace = line.indexOf(' ');
+                if(firstSpace == -1) {
+                    // A truncated final line from a crash, ignore it
+                    continue;
+                }
+                String operation = line.substring(0, firstSpace);
+                int secondSpace = line.indexOf(' ', firstSpace + 1);
+                String key = secondSpace == -1 ? line.substring(firstSpace + 1)
+                        : line.substring(firstSpace + 1, secondSpace);
+                switch (operation) {
+                    case CLEAN:
+                        if(secondSpace == -1) {
+                            continue;
+                        }
+                        long entrySize;
+                        try {
+                            entrySize = Long.parseLong(line.substring(secondSpace + 1));
+                        } catch (NumberFormatException e) {
+                            continue;
+                        }
+                        Long oldSize = entries.put(key, entrySize);
+                        // A DIRTY entry's -1 was never added to size
+                        if(oldSize != null && oldSize > 0) {
+                            size -= oldSize;
+                        }
+                        size += entrySize;
+                        break;
+                    case DIRTY:
+                        // Marked with a negative size until a matching CLEAN is seen
+                        Long previous = entries.put(key, -1L);
+                        if(previous != null && previous > 0) {
+                            size -= previous;
+                        }
+                        break;
+                    case REMOVE:
+                        Long removed = entries.remove(key);
+                        if(removed != null && removed > 0) {
+                            size -= removed;
+                        }
+                        break;
+                    case READ:
+                        entries.get(key);
+                        break;
+                }
+            }
+            redundantOperationCount = lineCount - entries.size();
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Deletes thumbnails whose write started but never finished.
+     */
+    private void removeUnfinishedWrites() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if(entry.getValue() < 0) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(directory, entry.getKey()).delete();
+                //noinspection ResultOfMethodCallIgnored
+                new File(directory, entry.getKey() + ".tmp").delete();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void trimToSize(long maxSize) {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while(size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            //noinspection ResultOfMethodCallIgnored
+            new File(directory, eldest.getKey()).delete();
+            size -= eldest.getValue();
+            iterator.remove();
+            if(journalWriter != null) {
+                appendToJournal(REMOVE, eldest.getKey());
+                redundantOperationCount += 2;
+            }
+        }
+        flushJournal();
+    }
+
+    private void compactJournalIfNeeded() {
+        if(redundantOperationCount >= REDUNDANT_OPERATION_COMPACT_THRESHOLD
+                && redundantOperationCount >= entries.size()) {
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to compact the journal, disk caching disabled", e);
+                journalWriter = null;
+            }
+        }
+    }
+
+    /**
+     * Writes a new journal containing only the current entries and atomically replaces the old one.
+     */
+    private void rebuildJournal() throws IOException {
+        closeQuietly(journalWriter);
+        File tempJournal = new File(directory, JOURNAL_FILE_TEMP);
+        FileOutputStream out = new FileOutputStream(tempJournal);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "US-ASCII"));
+        try {
+            writer.write(MAGIC);
+            writer.write('\n');
+            writer.write(VERSION);
+            writer.write('\n');
+            for(Map.Entry<String, Long> entry : entries.entrySet()) {
+                writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+            }
+            // Writes in progress outside the lock still need cleaning up if they never finish
+            for(String key : writing) {
+                writer.write(DIRTY + ' ' + key + '\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            closeQuietly(writer);
+        }
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if(!tempJournal.renameTo(journalFile)) {
+            throw new IOException("Unable to replace the journal");
+        }
+        redundantOperationCount = 0;
+        journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+    }
+
+    private void appendToJournal(String operation, String arguments) {
+        try {
+            journalWriter.write(operation);
+            journalWriter.write(' ');
+            journalWriter.write(arguments);
+            journalWriter.write('\n');
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write to the journal", e);
+        }
+    }
+
+    private void flushJournal() {
+        if(journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to flush the journal", e);
+        }
+    }
+
+    private void deleteContents() {
+        entries.clear();
+        size = 0;
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if(closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.wizardike.gallery;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Finds images that look the same or nearly the same, like burst shots and photos downloaded
+ * twice, by comparing perceptual hashes of their smallest thumbnails.
+ * Hashes are kept in a HashIndex saved between runs, so only images added or changed since the
+ * last run are hashed, in parallel on the ImageEngine's scheduler. Similar images are found with
+ * a BkTree instead of comparing every pair, and joined into groups, so a run of burst shots that
+ * each look like the next ends up in one group.
+ * Blocks while it works, so must be run on its own thread.
+ */
+final class DuplicateFinder {
+    private static final String TAG = "DuplicateFinder";
+    // Hashes at most this many bits apart are taken to be the same picture
+    private static final int MAX_DISTANCE = 10;
+    // Images listed per MediaStore query, the ones that need hashing are hashed as a batch
+    private static final int PAGE_SIZE = 1024;
+    // _IDs looked up per query when loading the duplicates, so the selection stays short
+    private static final int ID_QUERY_SIZE = 256;
+    private static final String INDEX_FILE = "perceptual_hashes";
+    // The warm-up job and the duplicates view can both update the saved index
+    private static final Object indexLock = new Object();
+
+    /**
+     * Groups of similar images.
+     */
+    static final class Groups {
+        static final Groups EMPTY = new Groups(MediaIndex.EMPTY, new int[]{0});
+
+        // The images of every group, each group's images next to each other, newest group first
+        final MediaIndex images;
+        // The position in images of the first image of each group, then images' count
+        final int[] groupStarts;
+
+        Groups(MediaIndex images, int[] groupStarts) {
+            this.images = images;
+            this.groupStarts = groupStarts;
+        }
+
+        int getGroupCount() {
+            return groupStarts.length - 1;
+        }
+    }
+
+    /**
+     * The hashes of the images in the order they are displayed.
+     */
+    private static final class Hashes {
+        long[] ids;
+        long[] hashes;
+        int count = 0;
+
+        Hashes(int expectedCount) {
+            ids = new long[Math.max(expectedCount, 16)];
+            hashes = new long[ids.length];
+        }
+
+        void add(long id, long hash) {
+            if(count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+            ids[count] = id;
+            hashes[count] = hash;
+            ++count;
+        }
+    }
+
+    /**
+     * Joins every image a search finds into the group of the image searched for.
+     * Images are numbered in the order they are shown, newest first.
+     */
+    static final class Joiner implements BkTree.Visitor {
+        final int[] parents;
+        int item;
+
+        Joiner(int count) {
+            parents = new int[count];
+            for(int i = 0; i != count; ++i) {
+                parents[i] = i;
+            }
+        }
+
+        @Override
+        public void onMatch(int match) {
+            final int root = find(item);
+            final int matchRoot = find(match);
+            if(root != matchRoot) {
+                // The newer image's root wins, so groups are ordered by their newest image
+                if(root < matchRoot) {
+                    parents[matchRoot] = root;
+                } else {
+                    parents[root] = matchRoot;
+                }
+            }
+        }
+
+        int find(int item) {
+            while(parents[item] != item) {
+                // Path halving keeps the chains short
+                parents[item] = parents[parents[item]];
+                item = parents[item];
+            }
+            return item;
+        }
+
+        /**
+         * Lists the images that were joined with at least one other, group by group. Groups are
+         * in the order of their newest images and each group's images are newest first.
+         * @param members Filled with the grouped images, must have room for all of them
+         * @return The position in members of each group's first image, then the number of grouped images
+         */
+        int[] group(int[] members) {
+            final int count = parents.length;
+            final int[] sizes = new int[count];
+            for(int i = 0; i != count; ++i) {
+                ++sizes[find(i)];
+            }
+            // The root is a group's newest image, so numbering roots in order orders the groups
+            final int[] groupOfRoot = new int[count];
+            int groupCount = 0;
+            for(int i = 0; i != count; ++i) {
+                if(sizes[i] > 1 && find(i) == i) {
+                    groupOfRoot[i] = groupCount++;
+                }
+            }
+            final int[] groupStarts = new int[groupCount + 1];
+            for(int i = 0; i != count; ++i) {
+                final int root = find(i);
+                if(sizes[root] > 1) {
+                    ++groupStarts[groupOfRoot[root] + 1];
+                }
+            }
+            for(int group = 0; group != groupCount; ++group) {
+                groupStarts[group + 1] += groupStarts[group];
+            }
+            final int[] filled = Arrays.copyOf(groupStarts, groupCount);
+            for(int i = 0; i != count; ++i) {
+                final int root = find(i);
+                if(sizes[root] > 1) {
+                    members[filled[groupOfRoot[root]]++] = i;
+                }
+            }
+            return groupStarts;
+        }
+    }
+
+    private final Context context;
+    private final ImageEngine engine;
+    private final int priority;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param priority The DecodeScheduler priority to hash at
+     */
+    DuplicateFinder(Context context, ImageEngine engine, int priority) {
+        this.context = context.getApplicationContext();
+        this.engine = engine;
+        this.priority = priority;
+    }
+
+    /**
+     * Stops the finder as soon as it can. Can be called from any thread.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Hashes the images that changed since the last run and saves the index, without grouping
+     * them. Used to do the slow part ahead of time.
+     * @return False if cancelled
+     */
+    boolean updateIndex() {
+        return updateHashes() != null;
+    }
+
+    /**
+     * Brings the hashes up to date and groups the images that look alike.
+     * @return The groups, or null if cancelled
+     */
+    Groups findDuplicates() {
+        final Hashes hashes = updateHashes();
+        if(hashes == null) {
+            return null;
+        }
+        final int count = hashes.count;
+        final BkTree tree = new BkTree(count);
+        for(int i = 0; i != count; ++i) {
+            tree.add(hashes.hashes[i], i);
+        }
+        final Joiner joiner = new Joiner(count);
+        for(int i = 0; i != count; ++i) {
+            if(cancelled) {
+                return null;
+            }
+            joiner.item = i;
+            tree.search(hashes.hashes[i], MAX_DISTANCE, joiner);
+        }
+
+        final int[] members = new int[count];
+        final int[] groupStarts = joiner.group(members);
+        final long[] memberIds = new long[groupStarts[groupStarts.length - 1]];
+        for(int i = 0; i != memberIds.length; ++i) {
+            memberIds[i] = hashes.ids[members[i]];
+        }
+        return loadGroups(memberIds, groupStarts);
+    }
+
+    /**
+     * Loads the paths of the grouped images. Images deleted since they were listed are left out,
+     * along with any group that no longer has two images.
+     */
+    private Groups loadGroups(long[] memberIds, int[] groupStarts) {
+        final HashMap<Long, Integer> positions = new HashMap<>(memberIds.length * 2);
+        final MediaIndex[] chunks = new MediaIndex[(memberIds.length + ID_QUERY_SIZE - 1) / ID_QUERY_SIZE];
+        final MediaStoreSync sync = new MediaStoreSync(context.getContentResolver());
+        try {
+            for(int chunk = 0; chunk != chunks.length; ++chunk) {
+                if(cancelled) {
+                    return null;
+                }
+                final int from = chunk * ID_QUERY_SIZE;
+                chunks[chunk] = sync.queryIds(memberIds, from, Math.min(memberIds.length, from + ID_QUERY_SIZE));
+                for(int i = 0, loaded = chunks[chunk].getCount(); i != loaded; ++i) {
+                    // Which chunk and where in it, packed into one int
+                    positions.put(chunks[chunk].getId(i), chunk * ID_QUERY_SIZE + i);
+                }
+            }
+        } finally {
+            sync.close();
+        }
+        final MediaIndex.Builder builder = new MediaIndex.Builder(memberIds.length);
+        final int[] newStarts = new int[groupStarts.length];
+        int groupCount = 0;
+        int imageCount = 0;
+        for(int group = 0; group != groupStarts.length - 1; ++group) {
+            int size = 0;
+            for(int i = groupStarts[group]; i != groupStarts[group + 1]; ++i) {
+                if(positions.containsKey(memberIds[i])) {
+                    ++size;
+                }
+            }
+            if(size < 2) {
+                continue;
+            }
+            newStarts[groupCount++] = imageCount;
+            for(int i = groupStarts[group]; i != groupStarts[group + 1]; ++i) {
+                final Integer position = positions.get(memberIds[i]);
+                if(position != null) {
+                    final MediaIndex chunk = chunks[position / ID_QUERY_SIZE];
+                    final int row = position % ID_QUERY_SIZE;
+                    builder.add(chunk.getId(row), chunk.getDateAdded(row), chunk.getDateModified(row),
+                            chunk.getOrientation(row), chunk.getWidth(row), chunk.getHeight(row), chunk.getPath(row));
+                    ++imageCount;
+                }
+            }
+        }
+        newStarts[groupCount] = imageCount;
+        return new Groups(builder.build(), Arrays.copyOf(newStarts, groupCount + 1));
+    }
+
+    /**
+     * Lists every image, reusing saved hashes and hashing the rest, then saves the index if
+     * anything changed.
+     * @return The hashes or null if cancelled
+     */
+    private Hashes updateHashes() {
+        synchronized (indexLock) {
+            final File file = new File(context.getFilesDir(), INDEX_FILE);
+            final HashIndex old = HashIndex.load(file);
+            final HashIndex.Builder builder = new HashIndex.Builder(old.getCount());
+            final Hashes hashes = new Hashes(old.getCount());
+            final long[] pageHashes = new long[PAGE_SIZE];
+            final boolean[] hashed = new boolean[PAGE_SIZE];
+            int newHashes = 0;
+            final MediaStoreSync sync = new MediaStoreSync(context.getContentResolver());
+            try {
+                MediaIndex page = sync.queryPage(0, PAGE_SIZE);
+                while(true) {
+                    final int count = page.getCount();
+                    newHashes += hashPage(page, old, pageHashes, hashed);
+                    if(cancelled) {
+                        return null;
+                    }
+                    for(int i = 0; i != count; ++i) {
+                        if(hashed[i]) {
+                            builder.add(page.getId(i), page.getDateModified(i), pageHashes[i]);
+                            hashes.add(page.getId(i), pageHashes[i]);
+                        }
+                    }
+                    if(count < PAGE_SIZE) {
+                        break;
+                    }
+                    page = sync.queryPageAfter(page.getDateAdded(count - 1), page.getId(count - 1), PAGE_SIZE);
+                }
+            } finally {
+                sync.close();
+            }
+            if(newHashes != 0 || hashes.count != old.getCount()) {
+                try {
+                    builder.build().save(file);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to save the perceptual hashes", e);
+                }
+            }
+            return hashes;
+        }
+    }
+
+    /**
+     * Finds the hash of every image in page, looking it up in old or hashing its thumbnail. The
+     * images that need hashing are hashed in parallel.
+     * @param hashed Set to whether each image has a hash, images that can't be decoded don't
+     * @return The number of images hashed
+     */
+    private int hashPage(final MediaIndex page, HashIndex old, final long[] pageHashes, final boolean[] hashed) {
+        final int count = page.getCount();
+        int missing = 0;
+        for(int i = 0; i != count; ++i) {
+            final int position = old.find(page.getId(i), page.getDateModified(i));
+            hashed[i] = position != -1;
+            if(hashed[i]) {
+                pageHashes[i] = old.getHash(position);
+            } else {
+                ++missing;
+            }
+        }
+        if(missing == 0) {
+            return 0;
+        }
+        final int size = ThumbnailTier.SIZES[0];
+        final DiskThumbnailCache diskCache = engine.getDiskCache();
+        final BitmapPool pool = engine.getBitmapPool();
+        final CountDownLatch remaining = new CountDownLatch(missing);
+        final DecodeScheduler.Callback<Void> done = new DecodeScheduler.Callback<Void>() {
+            @Override
+            public void onResult(Void result) {
+                remaining.countDown();
+            }
+        };
+        for(int i = 0; i != count; ++i) {
+            if(hashed[i]) {
+                continue;
+            }
+            final int row = i;
+            final String filename = page.getPath(i);
+            final int orientation = page.getOrientation(i);
+            engine.getScheduler().submit(null, priority, new DecodeScheduler.Task<Void>() {
+                @Override
+                public Void run() {
+                    if(cancelled) {
+                        return null;
+                    }
+                    // Any thumbnail is plenty for a 9 by 8 hash, so use the smallest one the grid or
+                    // the warm-up already put on disk
+                    Bitmap thumbnail = null;
+                    for(int tier = 0; tier != ThumbnailTier.COUNT && thumbnail == null; ++tier) {
+                        final int tierSize = ThumbnailTier.SIZES[tier];
+                        final String tierKey = DiskThumbnailCache.getKey(filename, tierSize);
+                        if(tierKey != null) {
+                            thumbnail = ThumbnailDecoder.getCachedThumbnail(diskCache, tierKey, tierSize,
+                                    Bitmap.Config.ARGB_8888, pool);
+                        }
+                    }
+                    if(thumbnail == null) {
+                        final String key = DiskThumbnailCache.getKey(filename, size);
+                        thumbnail = ThumbnailDecoder.getThumbnail(filename, size, orientation,
+                                Bitmap.Config.ARGB_8888, pool);
+                        if(thumbnail == null) {
+                            return null;
+                        }
+                        if(key != null) {
+                            diskCache.put(key, thumbnail);
+                        }
+                    }
+                    pageHashes[row] = PerceptualHash.dHash(thumbnail);
+                    hashed[row] = true;
+                    pool.put(thumbnail);
+                    Metrics.PERCEPTUAL_HASHES.increment();
+                    return null;
+                }
+            }, done);
+        }
+        try {
+            remaining.await();
+        } catch (InterruptedException e) {
+            cancelled = true;
+        }
+        return missing;
+    }
+}
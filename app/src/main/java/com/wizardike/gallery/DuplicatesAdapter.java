@@ -0,0 +1,177 @@
+package com.wizardike.gallery;
+
+import android.app.Activity;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.TypedValue;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.Arrays;
+
+/**
+ * Shows groups of similar images found by DuplicateFinder, each group under a header that spans
+ * the grid, see getSpanSizeLookup.
+ * Thumbnails are loaded through the ImageEngine like the main grid's.
+ */
+class DuplicatesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+    // Thumbnails are type 0 like PhotoAdapter's cells, the type PhotoGridView sizes its recycled view pool for
+    private static final int TYPE_IMAGE = 0;
+    private static final int TYPE_HEADER = 1;
+
+    private final Activity activity;
+    private final ThumbnailCellBinder binder;
+    private final Drawable placeholder;
+    private final DuplicateFinder.Groups groups;
+    // The position of each group's header
+    private final int[] headerPositions;
+    private OnImageClickListener onImageClickListener;
+    // The grid the adapter is attached to, its cell size picks the tier
+    private RecyclerView recyclerView;
+
+    /**
+     * The type of function that will be called when an image is clicked.
+     */
+    interface OnImageClickListener {
+        /**
+         * @param index The image's position in the groups' MediaIndex
+         */
+        void onImageClick(int index);
+    }
+
+    DuplicatesAdapter(Activity activity, ImageEngine engine, RequestGroup requests, DuplicateFinder.Groups groups) {
+        this.activity = activity;
+        this.binder = new ThumbnailCellBinder(engine, requests);
+        this.groups = groups;
+        this.placeholder = new ColorDrawable(ContextCompat.getColor(activity, R.color.thumbnailPlaceholder));
+        final int groupCount = groups.getGroupCount();
+        headerPositions = new int[groupCount];
+        for(int group = 0; group != groupCount; ++group) {
+            headerPositions[group] = groups.groupStarts[group] + group;
+        }
+        setHasStableIds(true);
+    }
+
+    void setOnImageClickListener(OnImageClickListener listener) {
+        onImageClickListener = listener;
+    }
+
+    /**
+     * @return A lookup that makes headers fill a whole row of grid, however many columns it has
+     */
+    GridLayoutManager.SpanSizeLookup getSpanSizeLookup(final PhotoGridView grid) {
+        return new GridLayoutManager.SpanSizeLookup() {
+            @Override
+            public int getSpanSize(int position) {
+                return getItemViewType(position) == TYPE_HEADER ? grid.getNumColumns() : 1;
+            }
+        };
+    }
+
+    /**
+     * @return The image at position's index in the groups' MediaIndex
+     */
+    int getIndex(int position) {
+        // Before insertion point - 1 is the group the position is in
+        int group = Arrays.binarySearch(headerPositions, position);
+        if(group < 0) {
+            group = -group - 2;
+        }
+        return position - group - 1;
+    }
+
+    @Override
+    public int getItemCount() {
+        return groups.images.getCount() + headerPositions.length;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return Arrays.binarySearch(headerPositions, position) >= 0 ? TYPE_HEADER : TYPE_IMAGE;
+    }
+
+    /**
+     * @return The image's MediaStore _ID, or a negative id for a header
+     */
+    @Override
+    public long getItemId(int position) {
+        final int group = Arrays.binarySearch(headerPositions, position);
+        return group >= 0 ? -1L - group : groups.images.getId(getIndex(position));
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        this.recyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        this.recyclerView = null;
+    }
+
+    @Override
+    public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        if(viewType == TYPE_HEADER) {
+            TextView header = new TextView(activity);
+            final int padding = activity.getResources().getDimensionPixelSize(R.dimen.album_label_padding);
+            header.setPadding(padding * 2, padding * 3, padding * 2, padding);
+            header.setTextSize(TypedValue.COMPLEX_UNIT_SP, 14);
+            header.setTextColor(ContextCompat.getColor(activity, R.color.albumLabelText));
+            return new HeaderViewHolder(header);
+        }
+        final ImageViewHolder vh = new ImageViewHolder(new ThumbnailCellView(activity, placeholder));
+        vh.cell.view.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                final int position = vh.getAdapterPosition();
+                if(onImageClickListener != null && position != RecyclerView.NO_POSITION) {
+                    onImageClickListener.onImageClick(getIndex(position));
+                }
+            }
+        });
+        return vh;
+    }
+
+    @Override
+    public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+        if(holder instanceof HeaderViewHolder) {
+            final int group = Arrays.binarySearch(headerPositions, position);
+            final int size = groups.groupStarts[group + 1] - groups.groupStarts[group];
+            ((HeaderViewHolder)holder).header.setText(activity.getResources().getQuantityString(
+                    R.plurals.similar_image_count, size, size));
+            return;
+        }
+        final int index = getIndex(position);
+        binder.bind(((ImageViewHolder)holder).cell, groups.images.getId(index), groups.images.getPath(index),
+                groups.images.getOrientation(index), ThumbnailCellBinder.getTier(recyclerView));
+    }
+
+    @Override
+    public void onViewRecycled(RecyclerView.ViewHolder holder) {
+        if(holder instanceof ImageViewHolder) {
+            binder.clear(((ImageViewHolder)holder).cell);
+        }
+    }
+
+    static class HeaderViewHolder extends RecyclerView.ViewHolder {
+        final TextView header;
+
+        HeaderViewHolder(TextView header) {
+            super(header);
+            this.header = header;
+        }
+    }
+
+    static class ImageViewHolder extends RecyclerView.ViewHolder {
+        final ThumbnailCellBinder.Cell cell;
+
+        ImageViewHolder(ThumbnailCellView view) {
+            super(view);
+            this.cell = new ThumbnailCellBinder.Cell(view);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.wizardike.gallery;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads the size, EXIF orientation and embedded EXIF thumbnail of a JPEG in one pass over its
+ * headers, without decoding any image data.
+ * Only the segments before the image data are read, normally a few kilobytes at the start of the
+ * file. The buffer used to hold the EXIF segment is reused between reads, so each thread that
+ * reads files should keep its own ExifReader.
+ */
+final class ExifReader {
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    // A segment's length is stored in 16 bits
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+    // "Exif\0\0" then the TIFF header
+    private static final int TIFF_START = 6;
+
+    private final byte[] segment = new byte[MAX_SEGMENT_LENGTH];
+    private final byte[] header = new byte[8];
+    private boolean littleEndian;
+
+    private int width;
+    private int height;
+    private int orientation;
+    private int thumbnailOffset;
+    private int thumbnailLength;
+
+    /**
+     * Reads the headers of a JPEG file. Returns false if the file isn't a JPEG or can't be read.
+     * The getters are only valid after a successful read and until the next one.
+     */
+    boolean read(String filename) {
+        width = 0;
+        height = 0;
+        orientation = -1;
+        thumbnailOffset = 0;
+        thumbnailLength = 0;
+        try {
+            RandomAccessFile file = new RandomAccessFile(filename, "r");
+            try {
+                return readSegments(file);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The width of the image as stored in the file, before it is rotated
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The height of the image as stored in the file, before it is rotated
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return How far the image needs rotating clockwise in degrees, or -1 if the file has no
+     * orientation tag
+     */
+    int getOrientation() {
+        return orientation;
+    }
+
+    boolean hasThumbnail() {
+        return thumbnailLength != 0;
+    }
+
+    /**
+     * @return The array holding the embedded JPEG thumbnail, from getThumbnailOffset for
+     * getThumbnailLength bytes. Overwritten by the next read.
+     */
+    byte[] getThumbnailData() {
+        return segment;
+    }
+
+    int getThumbnailOffset() {
+        return thumbnailOffset;
+    }
+
+    int getThumbnailLength() {
+        return thumbnailLength;
+    }
+
+    private boolean readSegments(RandomAccessFile file) throws IOException {
+        file.readFully(header, 0, 2);
+        if((header[0] & 0xFF) != 0xFF || (header[1] & 0xFF) != MARKER_SOI) {
+            return false;
+        }
+        boolean foundExif = false;
+        while(true) {
+            file.readFully(header, 0, 2);
+            if((header[0] & 0xFF) != 0xFF) {
+                return false;
+            }
+            final int marker = header[1] & 0xFF;
+            if(marker == 0xFF) {
+                // Padding before a marker
+                file.seek(file.getFilePointer() - 1);
+                continue;
+            }
+            if(marker == MARKER_SOS || marker == MARKER_EOI) {
+                return false;
+            }
+            if(marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Markers without a length
+                continue;
+            }
+            file.readFully(header, 0, 2);
+            final int length = ((header[0] & 0xFF) << 8 | (header[1] & 0xFF)) - 2;
+            if(length < 0) {
+                return false;
+            }
+            if(isStartOfFrame(marker)) {
+                if(length < 5) {
+                    return false;
+                }
+                file.readFully(header, 0, 5);
+                height = (header[1] & 0xFF) << 8 | (header[2] & 0xFF);
+                width = (header[3] & 0xFF) << 8 | (header[4] & 0xFF);
+                // The frame header is the last thing needed, it always comes after the EXIF segment
+                return width != 0 && height != 0;
+            }
+            if(marker == MARKER_APP1 && !foundExif && length > TIFF_START + 8) {
+                file.readFully(segment, 0, length);
+                if(isExif()) {
+                    foundExif = true;
+                    readTiff(length);
+                }
+                continue;
+            }
+            file.seek(file.getFilePointer() + length);
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // 0xC4, 0xC8 and 0xCC are other segments in the same range
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private boolean isExif() {
+        return segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f'
+                && segment[4] == 0 && segment[5] == 0;
+    }
+
+    /**
+     * Reads the orientation from the first IFD and the thumbnail location from the second.
+     * Offsets in the TIFF structure are relative to the TIFF header. Anything pointing outside the
+     * segment is ignored.
+     */
+    private void readTiff(int length) {
+        if(segment[TIFF_START] == 'I' && segment[TIFF_START + 1] == 'I') {
+            littleEndian = true;
+        } else if(segment[TIFF_START] == 'M' && segment[TIFF_START + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return;
+        }
+        final int tiffLength = length - TIFF_START;
+        if(readShort(2) != 42) {
+            return;
+        }
+        final int firstIfd = readInt(4);
+        if(firstIfd < 8 || firstIfd > tiffLength - 2) {
+            return;
+        }
+        final int firstCount = readShort(firstIfd);
+        final int firstEnd = firstIfd + 2 + firstCount * 12;
+        if(firstEnd + 4 > tiffLength) {
+            return;
+        }
+        for(int entry = firstIfd + 2; entry != firstEnd; entry += 12) {
+            if(readShort(entry) == TAG_ORIENTATION) {
+                orientation = toDegrees(readShort(entry + 8));
+            }
+        }
+
+        final int secondIfd = readInt(firstEnd);
+        if(secondIfd < 8 || secondIfd > tiffLength - 2) {
+            return;
+        }
+        final int secondCount = readShort(secondIfd);
+        final int secondEnd = secondIfd + 2 + secondCount * 12;
+        if(secondEnd > tiffLength) {
+            return;
+        }
+        int offset = 0;
+        int thumbnailSize = 0;
+        for(int entry = secondIfd + 2; entry != secondEnd; entry += 12) {
+            final int tag = readShort(entry);
+            if(tag == TAG_THUMBNAIL_OFFSET) {
+                offset = readInt(entry + 8);
+            } else if(tag == TAG_THUMBNAIL_LENGTH) {
+                thumbnailSize = readInt(entry + 8);
+            }
+        }
+        if(offset > 0 && thumbnailSize > 0 && offset <= tiffLength - thumbnailSize) {
+            thumbnailOffset = TIFF_START + offset;
+            thumbnailLength = thumbnailSize;
+        }
+    }
+
+    /**
+     * Converts an EXIF orientation to a clockwise rotation. Mirrored orientations are shown with
+     * the rotation of the closest unmirrored one as the grid has no way to show mirroring.
+     */
+    private static int toDegrees(int exifOrientation) {
+        switch(exifOrientation) {
+            case 1:
+            case 2:
+                return 0;
+            case 3:
+            case 4:
+                return 180;
+            case 5:
+            case 6:
+                return 90;
+            case 7:
+            case 8:
+                return 270;
+            default:
+                return -1;
+        }
+    }
+
+    private int readShort(int tiffOffset) {
+        final int position = TIFF_START + tiffOffset;
+        final int first = segment[position] & 0xFF;
+        final int second = segment[position + 1] & 0xFF;
+        return littleEndian ? second << 8 | first : first << 8 | second;
+    }
+
+    private int readInt(int tiffOffset) {
+        final int high;
+        final int low;
+        if(littleEndian) {
+            low = readShort(tiffOffset);
+            high = readShort(tiffOffset + 2);
+        } else {
+            high = readShort(tiffOffset);
+            low = readShort(tiffOffset + 2);
+        }
+        return high << 16 | low;
+    }
+}
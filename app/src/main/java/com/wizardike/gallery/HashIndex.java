@@ -0,0 +1,174 @@
+package com.wizardike.gallery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The perceptual hashes of the images on the phone, by MediaStore _ID, with the modification date
+ * each hash was taken at so edited images are hashed again.
+ * Entries are sorted by _ID so an image's hash is found with a binary search. The index is saved
+ * to a file between runs, so only images added or changed since the last run need hashing.
+ */
+final class HashIndex {
+    static final HashIndex EMPTY = new HashIndex(new long[0], new long[0], new long[0]);
+
+    private static final int MAGIC = 0x47616c48; // "GalH"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 3 * 4;
+
+    private final long[] ids;
+    private final long[] datesModified;
+    private final long[] hashes;
+
+    private HashIndex(long[] ids, long[] datesModified, long[] hashes) {
+        this.ids = ids;
+        this.datesModified = datesModified;
+        this.hashes = hashes;
+    }
+
+    int getCount() {
+        return ids.length;
+    }
+
+    /**
+     * @return The position of the image's hash, or -1 if it wasn't hashed or has been modified since
+     */
+    int find(long id, long dateModified) {
+        final int position = Arrays.binarySearch(ids, id);
+        return position >= 0 && datesModified[position] == dateModified ? position : -1;
+    }
+
+    long getHash(int position) {
+        return hashes[position];
+    }
+
+    /**
+     * Writes the index to file so it can be loaded later with load.
+     * Does IO so shouldn't be called on the ui thread.
+     */
+    void save(File file) throws IOException {
+        final int count = ids.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * 8 * 3);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(count);
+        buffer.asLongBuffer().put(ids).put(datesModified).put(hashes);
+        buffer.clear();
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            FileChannel channel = out.getChannel();
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Reads an index written by save.
+     * @return The index or EMPTY if the file doesn't exist or isn't a valid index
+     */
+    static HashIndex load(File file) {
+        if(!file.exists()) {
+            return EMPTY;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            final long fileSize = channel.size();
+            if(fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+                return EMPTY;
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            final int count = mapped.getInt(8);
+            if(mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION || count < 0
+                    || HEADER_SIZE + count * 8L * 3 > fileSize) {
+                return EMPTY;
+            }
+            long[] ids = new long[count];
+            long[] datesModified = new long[count];
+            long[] hashes = new long[count];
+            mapped.position(HEADER_SIZE);
+            mapped.asLongBuffer().get(ids).get(datesModified).get(hashes);
+            return new HashIndex(ids, datesModified, hashes);
+        } catch (IOException | RuntimeException e) {
+            return EMPTY;
+        } finally {
+            if(randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a HashIndex from hashes added in any order.
+     */
+    static class Builder {
+        private long[] ids;
+        private long[] datesModified;
+        private long[] hashes;
+        private int count = 0;
+
+        Builder(int expectedCount) {
+            final int capacity = Math.max(expectedCount, 16);
+            ids = new long[capacity];
+            datesModified = new long[capacity];
+            hashes = new long[capacity];
+        }
+
+        void add(long id, long dateModified, long hash) {
+            if(count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                datesModified = Arrays.copyOf(datesModified, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+            ids[count] = id;
+            datesModified[count] = dateModified;
+            hashes[count] = hash;
+            ++count;
+        }
+
+        HashIndex build() {
+            Integer[] order = new Integer[count];
+            for(int i = 0; i != count; ++i) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer first, Integer second) {
+                    final long firstId = ids[first];
+                    final long secondId = ids[second];
+                    return firstId < secondId ? -1 : (firstId == secondId ? 0 : 1);
+                }
+            });
+            long[] sortedIds = new long[count];
+            long[] sortedDates = new long[count];
+            long[] sortedHashes = new long[count];
+            for(int i = 0; i != count; ++i) {
+                final int from = order[i];
+                sortedIds[i] = ids[from];
+                sortedDates[i] = datesModified[from];
+                sortedHashes[i] = hashes[from];
+            }
+            return new HashIndex(sortedIds, sortedDates, sortedHashes);
+        }
+    }
+}
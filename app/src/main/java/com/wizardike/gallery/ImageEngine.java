@@ -0,0 +1,418 @@
+package com.wizardike.gallery;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+/**
+ * Loads and caches images for every screen in the process, so work done for one screen is still
+ * there for the next. Opening a photo and going back finds the grid's thumbnails where it left
+ * them, and going back to a photo finds its screen sized decode.
+ * Holds the decode scheduler, the thumbnail memory and disk caches, the bitmap pool and a small
+ * cache of screen sized decodes. Thumbnails are requested with a Builder. Requests can be added
+ * to a RequestGroup so a screen can cancel all of its requests when it is destroyed.
+ * Results are delivered on the ui thread. The caches must only be used on the ui thread.
+ */
+final class ImageEngine {
+    private static ImageEngine instance;
+
+    /**
+     * Called on the ui thread with a thumbnail once it is in the memory cache.
+     */
+    interface ThumbnailCallback {
+        /**
+         * @param entry The thumbnail or null if the image couldn't be decoded
+         */
+        void onThumbnailLoaded(ThumbnailMemoryCache.Entry entry);
+    }
+
+    /**
+     * Called on the ui thread with a decoded image.
+     */
+    interface BitmapCallback {
+        /**
+         * @param bitmap The image or null if it couldn't be decoded
+         */
+        void onBitmapLoaded(Bitmap bitmap);
+    }
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final DecodeScheduler scheduler = new DecodeScheduler();
+    private final ThumbnailMemoryCache memoryCache;
+    private final BitmapPool bitmapPool;
+    // Sizes memoryCache and bitmapPool and sheds thumbnails when memory is low
+    private final CacheGovernor cacheGovernor;
+    // Screen sized decodes by file name and sample size, for the full screen viewer
+    private final LruCache<String, Bitmap> sampledImages;
+    // The ThumbnailFormat mode new thumbnails are decoded with
+    private int thumbnailFormat;
+    // Smoothed time to load a thumbnail that isn't in the memory cache, starts at a typical value
+    private volatile long averageLoadNanos = 20000000L;
+
+    /**
+     * @return The process's engine, created the first time it is needed
+     */
+    static synchronized ImageEngine get(Context context) {
+        if(instance == null) {
+            instance = new ImageEngine(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ImageEngine(Context context) {
+        this.context = context;
+        // Get max available VM memory, exceeding this amount will throw an
+        // OutOfMemory exception.
+        final long maxMemory = Runtime.getRuntime().maxMemory();
+
+        // Use 1/4th of the available memory for this memory cache.
+        memoryCache = new ThumbnailMemoryCache(maxMemory / 4, new ThumbnailMemoryCache.RemovalListener() {
+            @Override
+            public void onRemoved(ThumbnailMemoryCache.Entry entry) {
+                releaseBitmap(entry);
+            }
+        });
+
+        // Enough to hold the sampled images of a few screens worth of decodes
+        bitmapPool = new BitmapPool(maxMemory / 16);
+
+        // Refines both budgets for the device and the grid, for as long as the process lives
+        cacheGovernor = new CacheGovernor(context, memoryCache, bitmapPool);
+        cacheGovernor.register();
+        thumbnailFormat = ThumbnailFormat.getDefaultMode(
+                (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE));
+        cacheGovernor.setThumbnailFormat(thumbnailFormat);
+
+        // A couple of screen sized images, enough to go back and forth between photos
+        sampledImages = new LruCache<String, Bitmap>((int)Math.min(Integer.MAX_VALUE, maxMemory / 8)) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return BitmapPool.getAllocationByteCount(bitmap);
+            }
+        };
+    }
+
+    /**
+     * @return The scheduler every screen decodes on, it is never shut down
+     */
+    DecodeScheduler getScheduler() {
+        return scheduler;
+    }
+
+    BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    CacheGovernor getCacheGovernor() {
+        return cacheGovernor;
+    }
+
+    /**
+     * Opens the disk cache the first time it is needed so opening it doesn't delay startup.
+     * Does disk IO so shouldn't be called on the ui thread.
+     */
+    DiskThumbnailCache getDiskCache() {
+        return DiskThumbnailCache.getShared(context.getCacheDir());
+    }
+
+    /**
+     * @return The smoothed time it takes to load a thumbnail that isn't in the memory cache
+     */
+    long getAverageLoadNanos() {
+        return averageLoadNanos;
+    }
+
+    /**
+     * Changes the bitmap configs new thumbnails are decoded in, one of the ThumbnailFormat modes.
+     * Thumbnails that are already cached are still shown.
+     */
+    void setThumbnailFormat(int mode) {
+        if(mode != thumbnailFormat) {
+            thumbnailFormat = mode;
+            cacheGovernor.setThumbnailFormat(mode);
+        }
+    }
+
+    /**
+     * Must be called when a screen showing images resumes.
+     */
+    void onResume() {
+        cacheGovernor.onResume();
+    }
+
+    /**
+     * @return The thumbnail of the image at tier in the memory cache, or null
+     */
+    ThumbnailMemoryCache.Entry getThumbnail(long id, int tier) {
+        return memoryCache.get(id, tier);
+    }
+
+    /**
+     * @return The thumbnail of the image in the memory cache closest in size to tier, or null
+     */
+    ThumbnailMemoryCache.Entry getNearestThumbnail(long id, int tier) {
+        return memoryCache.getNearest(id, tier);
+    }
+
+    /**
+     * Drops the cached thumbnails of images that have changed.
+     */
+    void forgetThumbnails(long[] ids) {
+        for(long id : ids) {
+            memoryCache.remove(id);
+        }
+    }
+
+    /**
+     * Records that a thumbnail is being displayed, so its bitmap isn't reused while it is shown.
+     */
+    void bind(ThumbnailMemoryCache.Entry entry) {
+        ++entry.displayCount;
+    }
+
+    /**
+     * Records that a thumbnail is no longer displayed, returning the bitmap to the pool if it has
+     * also left the memory cache.
+     */
+    void unbind(ThumbnailMemoryCache.Entry entry) {
+        if(--entry.displayCount == 0 && entry.evicted) {
+            bitmapPool.put(entry.bitmap);
+        }
+    }
+
+    /**
+     * Called when a thumbnail leaves the memory cache. Returns its bitmap to the pool, or waits
+     * until it stops being displayed if it is still on screen. Bitmaps of views thrown away
+     * without unbinding are never pooled, they are left to the garbage collector.
+     */
+    private void releaseBitmap(ThumbnailMemoryCache.Entry entry) {
+        if(entry.displayCount != 0) {
+            entry.evicted = true;
+        } else {
+            bitmapPool.put(entry.bitmap);
+        }
+    }
+
+    /**
+     * Starts building a request for a thumbnail.
+     * @param id The MediaStore _ID of the image
+     * @param filename The file name of the image
+     */
+    Builder thumbnail(long id, String filename) {
+        return new Builder(id, filename);
+    }
+
+    /**
+     * Builds a request for a thumbnail, which is loaded from the disk cache or decoded and then
+     * added to the memory cache.
+     */
+    final class Builder {
+        private final long id;
+        private final String filename;
+        private int orientation = 0;
+        private int tier = ThumbnailTier.DEFAULT;
+        private int priority = DecodeScheduler.PRIORITY_VISIBLE;
+        private RequestGroup group = null;
+
+        private Builder(long id, String filename) {
+            this.id = id;
+            this.filename = filename;
+        }
+
+        /**
+         * @param orientation The MediaStore's orientation, used if the file doesn't have one
+         */
+        Builder orientation(int orientation) {
+            this.orientation = orientation;
+            return this;
+        }
+
+        /**
+         * @param tier The ThumbnailTier to load
+         */
+        Builder tier(int tier) {
+            this.tier = tier;
+            return this;
+        }
+
+        /**
+         * @param priority The DecodeScheduler priority to load at
+         */
+        Builder priority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * @param group The group to cancel the request with, can be null
+         */
+        Builder group(RequestGroup group) {
+            this.group = group;
+            return this;
+        }
+
+        /**
+         * Starts loading the thumbnail. Must be called on the ui thread.
+         * @param callback Called with the thumbnail unless the request is cancelled first, can be null
+         * @return A request that can be used to cancel loading
+         */
+        DecodeScheduler.Request start(ThumbnailCallback callback) {
+            return startThumbnail(id, filename, orientation, tier, priority, group, callback);
+        }
+    }
+
+    private DecodeScheduler.Request startThumbnail(final long id, final String filename, final int orientation,
+                                                  final int tier, int priority, final RequestGroup group,
+                                                  final ThumbnailCallback callback) {
+        final int thumbnailSize = ThumbnailTier.SIZES[tier];
+        final Bitmap.Config config = ThumbnailFormat.getDecodeConfig(thumbnailFormat, tier);
+        final boolean hardware = ThumbnailFormat.useHardwareBitmaps(thumbnailFormat, tier);
+        final Delivery<DecodedThumbnail> delivery = new Delivery<DecodedThumbnail>(group) {
+            @Override
+            void onResult(DecodedThumbnail decoded, boolean cancelled) {
+                //Cache the image, even if nothing wants it any more it will probably be shown again
+                ThumbnailMemoryCache.Entry entry = null;
+                if (decoded != null) {
+                    // Requests sharing a decode are delivered one at a time, the first one keeps the bitmap
+                    if (!decoded.settled) {
+                        decoded.settled = true;
+                        if (memoryCache.get(id, tier) == null) {
+                            memoryCache.put(id, tier, decoded.bitmap);
+                        } else {
+                            // Another decode of the same image finished first, so this one can be reused
+                            bitmapPool.put(decoded.bitmap);
+                        }
+                    }
+                    entry = memoryCache.get(id, tier);
+                }
+                if(!cancelled && callback != null) {
+                    callback.onThumbnailLoaded(entry);
+                }
+            }
+        };
+        return delivery.submit(thumbnailSize + ":" + config + ":" + hardware + ":" + orientation + ":" + filename,
+                priority, new DecodeScheduler.Task<DecodedThumbnail>() {
+            @Override
+            public DecodedThumbnail run() {
+                final long startTime = System.nanoTime();
+                // try the disk cache before decoding the full jpeg into a bitmap
+                final DiskThumbnailCache diskCache = getDiskCache();
+                final String diskKey = DiskThumbnailCache.getKey(filename, thumbnailSize);
+                Bitmap thumbnail = ThumbnailDecoder.getCachedThumbnail(diskCache, diskKey, thumbnailSize,
+                        config, bitmapPool);
+                if(thumbnail != null) {
+                    Metrics.DISK_CACHE_HITS.increment();
+                    Metrics.DISK_CACHE_LOAD.record(System.nanoTime() - startTime);
+                } else {
+                    Metrics.DISK_CACHE_MISSES.increment();
+                    final long decodeStartTime = Metrics.startTimer();
+                    thumbnail = ThumbnailDecoder.getThumbnail(filename, thumbnailSize, orientation, config,
+                            bitmapPool);
+                    Metrics.DECODE_BY_TIER[tier].recordSince(decodeStartTime);
+                    diskCache.put(diskKey, thumbnail);
+                }
+                if(hardware && thumbnail != null) {
+                    thumbnail = ThumbnailDecoder.toHardwareBitmap(thumbnail, bitmapPool);
+                }
+                // Races between workers can lose an update, which doesn't matter for an estimate
+                final long loadNanos = System.nanoTime() - startTime;
+                averageLoadNanos += (loadNanos - averageLoadNanos) / 8;
+                return thumbnail == null ? null : new DecodedThumbnail(thumbnail);
+            }
+        });
+    }
+
+    /**
+     * @return A screen sized decode made by loadSampledImage that is still cached, or null
+     */
+    Bitmap getSampledImage(String filename, int sampleSize) {
+        return sampledImages.get(sampleSize + ":" + filename);
+    }
+
+    /**
+     * Decodes a whole image sampled down by sampleSize and caches it for getSampledImage.
+     * Must be called on the ui thread.
+     * @param group The group to cancel the request with, can be null
+     * @param callback Called with the image unless the request is cancelled first
+     */
+    DecodeScheduler.Request loadSampledImage(final String filename, final int sampleSize, int priority,
+                                             RequestGroup group, final BitmapCallback callback) {
+        final String key = sampleSize + ":" + filename;
+        return new Delivery<Bitmap>(group) {
+            @Override
+            void onResult(Bitmap bitmap, boolean cancelled) {
+                if(bitmap != null) {
+                    sampledImages.put(key, bitmap);
+                }
+                if(!cancelled) {
+                    callback.onBitmapLoaded(bitmap);
+                }
+            }
+        }.submit(key, priority, new DecodeScheduler.Task<Bitmap>() {
+            @Override
+            public Bitmap run() {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sampleSize;
+                return BitmapFactory.decodeFile(filename, options);
+            }
+        });
+    }
+
+    /**
+     * Passes the result of a request to the ui thread and takes it out of its group.
+     */
+    /**
+     * A decoded thumbnail, shared by every request with the same key.
+     */
+    private static final class DecodedThumbnail {
+        final Bitmap bitmap;
+        // Set on the ui thread once the bitmap has been cached or returned to the pool
+        boolean settled = false;
+
+        DecodedThumbnail(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+
+    private abstract class Delivery<T> implements DecodeScheduler.Callback<T> {
+        private final RequestGroup group;
+        private DecodeScheduler.Request request;
+
+        Delivery(RequestGroup group) {
+            this.group = group;
+        }
+
+        DecodeScheduler.Request submit(String key, int priority, DecodeScheduler.Task<T> task) {
+            request = scheduler.submit(key, priority, task, this);
+            if(group != null) {
+                group.add(request);
+            }
+            return request;
+        }
+
+        @Override
+        public void onResult(final T result) {
+            // submit is called on the ui thread, so request is set by the time this runs there
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(group != null) {
+                        group.remove(request);
+                    }
+                    onResult(result, request.isCancelled());
+                }
+            });
+        }
+
+        /**
+         * Called on the ui thread.
+         * @param cancelled True if the request was cancelled after its result was produced
+         */
+        abstract void onResult(T result, boolean cancelled);
+    }
+}
@@ -0,0 +1,434 @@
+package com.wizardike.gallery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An immutable list of the images on the phone in the order they are displayed.
+ * All the images are stored in columns in a single ByteBuffer. Each image's path is split into
+ * its directory, which is stored once and shared by every image in it, and its file name, which
+ * is stored as modified UTF-8. Paths are only turned into Strings when they are asked for.
+ * The buffer can be written to a file and memory mapped back in without parsing it.
+ */
+class MediaIndex {
+    static final MediaIndex EMPTY = new Builder(0).build();
+
+    private static final int MAGIC = 0x47616c49; // "GalI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5 * 4;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final String[] directories;
+    private final int idsOffset;
+    private final int datesAddedOffset;
+    private final int datesModifiedOffset;
+    private final int widthsOffset;
+    private final int heightsOffset;
+    private final int directoryIndicesOffset;
+    private final int nameOffsetsOffset;
+    private final int orientationsOffset;
+    private final int namesOffset;
+
+    private MediaIndex(ByteBuffer buffer, String[] directories) {
+        this.buffer = buffer;
+        this.directories = directories;
+        count = buffer.getInt(8);
+        idsOffset = HEADER_SIZE;
+        datesAddedOffset = idsOffset + count * 8;
+        datesModifiedOffset = datesAddedOffset + count * 8;
+        widthsOffset = datesModifiedOffset + count * 8;
+        heightsOffset = widthsOffset + count * 4;
+        directoryIndicesOffset = heightsOffset + count * 4;
+        nameOffsetsOffset = directoryIndicesOffset + count * 4;
+        orientationsOffset = nameOffsetsOffset + (count + 1) * 4;
+        namesOffset = orientationsOffset + count;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The MediaStore _ID of the image at position
+     */
+    long getId(int position) {
+        return buffer.getLong(idsOffset + position * 8);
+    }
+
+    long getDateAdded(int position) {
+        return buffer.getLong(datesAddedOffset + position * 8);
+    }
+
+    long getDateModified(int position) {
+        return buffer.getLong(datesModifiedOffset + position * 8);
+    }
+
+    int getWidth(int position) {
+        return buffer.getInt(widthsOffset + position * 4);
+    }
+
+    int getHeight(int position) {
+        return buffer.getInt(heightsOffset + position * 4);
+    }
+
+    /**
+     * @return The orientation in degrees, one of 0, 90, 180 or 270
+     */
+    int getOrientation(int position) {
+        return buffer.get(orientationsOffset + position) * 90;
+    }
+
+    String getDirectory(int position) {
+        return directories[buffer.getInt(directoryIndicesOffset + position * 4)];
+    }
+
+    /**
+     * Builds the path of the image at position. Allocates a new String every call.
+     */
+    String getPath(int position) {
+        final int start = namesOffset + buffer.getInt(nameOffsetsOffset + position * 4);
+        final int end = namesOffset + buffer.getInt(nameOffsetsOffset + (position + 1) * 4);
+        final String directory = getDirectory(position);
+        final int directoryLength = directory.length();
+        char[] chars = new char[directoryLength + 1 + (end - start)];
+        directory.getChars(0, directoryLength, chars, 0);
+        chars[directoryLength] = '/';
+        int length = directoryLength + 1;
+        for(int i = start; i < end;) {
+            final int b = buffer.get(i) & 0xff;
+            if(b < 0x80) {
+                chars[length++] = (char)b;
+                i += 1;
+            } else if(b < 0xe0) {
+                chars[length++] = (char)(((b & 0x1f) << 6) | (buffer.get(i + 1) & 0x3f));
+                i += 2;
+            } else {
+                chars[length++] = (char)(((b & 0x0f) << 12) | ((buffer.get(i + 1) & 0x3f) << 6)
+                        | (buffer.get(i + 2) & 0x3f));
+                i += 3;
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Checks if the image at position has the same path as the image at otherPosition in other
+     * without building either path.
+     */
+    boolean pathEquals(int position, MediaIndex other, int otherPosition) {
+        if(!getDirectory(position).equals(other.getDirectory(otherPosition))) {
+            return false;
+        }
+        final int start = namesOffset + buffer.getInt(nameOffsetsOffset + position * 4);
+        final int end = namesOffset + buffer.getInt(nameOffsetsOffset + (position + 1) * 4);
+        final int otherStart = other.namesOffset + other.buffer.getInt(other.nameOffsetsOffset + otherPosition * 4);
+        final int otherEnd = other.namesOffset + other.buffer.getInt(other.nameOffsetsOffset + (otherPosition + 1) * 4);
+        if(end - start != otherEnd - otherStart) {
+            return false;
+        }
+        for(int i = start, j = otherStart; i != end; ++i, ++j) {
+            if(buffer.get(i) != other.buffer.get(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the index to file so it can be loaded later with load.
+     * Does IO so shouldn't be called on the ui thread.
+     */
+    void save(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer data = buffer.duplicate();
+            data.clear();
+            while(data.hasRemaining()) {
+                channel.write(data);
+            }
+            ByteBuffer directoryData = encodeDirectories(directories);
+            while(directoryData.hasRemaining()) {
+                channel.write(directoryData);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Memory maps an index written by save.
+     * @return The index or null if the file doesn't exist or isn't a valid index
+     */
+    static MediaIndex load(File file) {
+        if(!file.exists()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            final long fileSize = channel.size();
+            if(fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            if(mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                return null;
+            }
+            final int count = mapped.getInt(8);
+            final int directoryCount = mapped.getInt(12);
+            final int namesLength = mapped.getInt(16);
+            final long dataSize = dataSize(count, namesLength);
+            if(count < 0 || directoryCount < 0 || namesLength < 0 || dataSize > fileSize) {
+                return null;
+            }
+            mapped.position((int)dataSize);
+            String[] directories = new String[directoryCount];
+            for(int i = 0; i != directoryCount; ++i) {
+                final int length = mapped.getInt();
+                byte[] bytes = new byte[length];
+                mapped.get(bytes);
+                directories[i] = new String(bytes, "UTF-8");
+            }
+            mapped.position(0);
+            mapped.limit((int)dataSize);
+            return new MediaIndex(mapped.slice(), directories);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        } finally {
+            if(randomAccessFile != null) {
+                try {
+                    // The mapping stays valid after the file is closed
+                    randomAccessFile.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static long dataSize(int count, int namesLength) {
+        return HEADER_SIZE + count * (8L * 3 + 4 * 3) + (count + 1) * 4L + count + namesLength;
+    }
+
+    private static ByteBuffer encodeDirectories(String[] directories) throws IOException {
+        byte[][] encoded = new byte[directories.length][];
+        int size = 0;
+        for(int i = 0; i != directories.length; ++i) {
+            encoded[i] = directories[i].getBytes("UTF-8");
+            size += 4 + encoded[i].length;
+        }
+        ByteBuffer directoryData = ByteBuffer.allocate(size);
+        for(byte[] bytes : encoded) {
+            directoryData.putInt(bytes.length);
+            directoryData.put(bytes);
+        }
+        directoryData.flip();
+        return directoryData;
+    }
+
+    /**
+     * Builds a MediaIndex one image at a time, without keeping a String for each path.
+     */
+    static class Builder {
+        private long[] ids;
+        private long[] datesAdded;
+        private long[] datesModified;
+        private int[] widths;
+        private int[] heights;
+        private int[] directoryIndices;
+        private int[] nameOffsets;
+        private byte[] orientations;
+        private byte[] names;
+        private int namesLength = 0;
+        private int count = 0;
+        private final ArrayList<String> directories = new ArrayList<>();
+        // Open addressing hash table of directory index + 1, 0 for empty
+        private int[] directoryTable = new int[64];
+
+        Builder(int expectedCount) {
+            final int capacity = Math.max(16, expectedCount);
+            ids = new long[capacity];
+            datesAdded = new long[capacity];
+            datesModified = new long[capacity];
+            widths = new int[capacity];
+            heights = new int[capacity];
+            directoryIndices = new int[capacity];
+            nameOffsets = new int[capacity + 1];
+            orientations = new byte[capacity];
+            names = new byte[capacity * 24];
+        }
+
+        void add(long id, long dateAdded, long dateModified, int orientation, int width, int height, String path) {
+            add(id, dateAdded, dateModified, orientation, width, height, path.toCharArray(), path.length());
+        }
+
+        /**
+         * Adds an image whose path is in the first pathLength chars of path.
+         * path can be reused after this returns.
+         */
+        void add(long id, long dateAdded, long dateModified, int orientation, int width, int height,
+                 char[] path, int pathLength) {
+            if(count == ids.length) {
+                final int capacity = count * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                datesAdded = Arrays.copyOf(datesAdded, capacity);
+                datesModified = Arrays.copyOf(datesModified, capacity);
+                widths = Arrays.copyOf(widths, capacity);
+                heights = Arrays.copyOf(heights, capacity);
+                directoryIndices = Arrays.copyOf(directoryIndices, capacity);
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+                orientations = Arrays.copyOf(orientations, capacity);
+            }
+            int separator = pathLength - 1;
+            while(separator >= 0 && path[separator] != '/') {
+                --separator;
+            }
+            ids[count] = id;
+            datesAdded[count] = dateAdded;
+            datesModified[count] = dateModified;
+            widths[count] = width;
+            heights[count] = height;
+            orientations[count] = (byte)((((orientation % 360) + 360) % 360) / 90);
+            directoryIndices[count] = getDirectoryIndex(path, Math.max(separator, 0));
+            nameOffsets[count] = namesLength;
+            appendName(path, separator + 1, pathLength);
+            ++count;
+            nameOffsets[count] = namesLength;
+        }
+
+        private void appendName(char[] path, int start, int end) {
+            if(namesLength + (end - start) * 3 > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + (end - start) * 3));
+            }
+            // modified UTF-8, every char is encoded separately so it can be decoded one char at a time
+            for(int i = start; i != end; ++i) {
+                final char c = path[i];
+                if(c != 0 && c < 0x80) {
+                    names[namesLength++] = (byte)c;
+                } else if(c < 0x800) {
+                    names[namesLength++] = (byte)(0xc0 | (c >> 6));
+                    names[namesLength++] = (byte)(0x80 | (c & 0x3f));
+                } else {
+                    names[namesLength++] = (byte)(0xe0 | (c >> 12));
+                    names[namesLength++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                    names[namesLength++] = (byte)(0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        private int getDirectoryIndex(char[] path, int length) {
+            int hash = 0;
+            for(int i = 0; i != length; ++i) {
+                hash = 31 * hash + path[i];
+            }
+            int mask = directoryTable.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while(directoryTable[slot] != 0) {
+                String directory = directories.get(directoryTable[slot] - 1);
+                if(directory.length() == length && regionEquals(directory, path, length)) {
+                    return directoryTable[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            directories.add(new String(path, 0, length));
+            directoryTable[slot] = directories.size();
+            if(directories.size() * 2 > directoryTable.length) {
+                growDirectoryTable();
+            }
+            return directories.size() - 1;
+        }
+
+        private static boolean regionEquals(String directory, char[] path, int length) {
+            for(int i = 0; i != length; ++i) {
+                if(directory.charAt(i) != path[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void growDirectoryTable() {
+            directoryTable = new int[directoryTable.length * 2];
+            final int mask = directoryTable.length - 1;
+            for(int i = 0; i != directories.size(); ++i) {
+                final int hash = directories.get(i).hashCode();
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while(directoryTable[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                directoryTable[slot] = i + 1;
+            }
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        MediaIndex build() {
+            ByteBuffer buffer = ByteBuffer.allocate((int)dataSize(count, namesLength));
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(count);
+            buffer.putInt(directories.size());
+            buffer.putInt(namesLength);
+            buffer.asLongBuffer().put(ids, 0, count);
+            buffer.position(buffer.position() + count * 8);
+            buffer.asLongBuffer().put(datesAdded, 0, count);
+            buffer.position(buffer.position() + count * 8);
+            buffer.asLongBuffer().put(datesModified, 0, count);
+            buffer.position(buffer.position() + count * 8);
+            buffer.asIntBuffer().put(widths, 0, count);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asIntBuffer().put(heights, 0, count);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asIntBuffer().put(directoryIndices, 0, count);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asIntBuffer().put(nameOffsets, 0, count + 1);
+            buffer.position(buffer.position() + (count + 1) * 4);
+            buffer.put(orientations, 0, count);
+            buffer.put(names, 0, namesLength);
+            buffer.clear();
+            return new MediaIndex(buffer, directories.toArray(new String[directories.size()]));
+        }
+    }
+
+    /**
+     * Finds the images in a range of this index that were removed or changed in newer, matching
+     * them by _ID. Any cached thumbnails of them are stale.
+     * @return The _IDs of the stale images
+     */
+    long[] findStaleIds(int offset, int length, MediaIndex newer) {
+        final int newCount = newer.getCount();
+        HashMap<Long, Integer> newPositions = new HashMap<>(newCount * 2);
+        for(int i = 0; i != newCount; ++i) {
+            newPositions.put(newer.getId(i), i);
+        }
+        long[] staleIds = new long[length];
+        int staleCount = 0;
+        for(int position = offset, end = offset + length; position != end; ++position) {
+            final long id = getId(position);
+            Integer newPosition = newPositions.get(id);
+            if(newPosition == null || getDateModified(position) != newer.getDateModified(newPosition)
+                    || !pathEquals(position, newer, newPosition)) {
+                staleIds[staleCount++] = id;
+            }
+        }
+        return Arrays.copyOf(staleIds, staleCount);
+    }
+}
@@ -0,0 +1,297 @@
+package com.wizardike.gallery;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of whether the images on the phone have changed and loads them from the MediaStore
+ * a page at a time, either every image or only the images in one album.
+ * A ContentObserver increments a generation number whenever the MediaStore reports a change, so
+ * callers can skip querying the MediaStore when nothing has changed since their last query.
+ */
+class MediaStoreSync {
+    private static final String[] PROJECTION = {
+            MediaStore.Images.Media._ID,
+            MediaStore.Images.Media.DATA,
+            MediaStore.Images.Media.ORIENTATION,
+            MediaStore.Images.Media.DATE_ADDED,
+            MediaStore.Images.Media.DATE_MODIFIED,
+            MediaStore.Images.Media.WIDTH,
+            MediaStore.Images.Media.HEIGHT
+    };
+    private static final String[] COUNT_PROJECTION = {MediaStore.Images.Media._ID};
+    private static final String[] KEY_PROJECTION = {
+            MediaStore.Images.Media.DATE_ADDED,
+            MediaStore.Images.Media._ID
+    };
+    // _ID breaks ties so every image has one position and pages don't overlap
+    private static final String SORT_ORDER = MediaStore.Images.Media.DATE_ADDED + " DESC, "
+            + MediaStore.Images.Media._ID + " DESC";
+    private static final String[] ALBUM_PROJECTION = {
+            MediaStore.Images.Media.BUCKET_ID,
+            MediaStore.Images.Media.BUCKET_DISPLAY_NAME,
+            MediaStore.Images.Media._ID,
+            MediaStore.Images.Media.DATE_ADDED,
+            MediaStore.Images.Media.DATA,
+            MediaStore.Images.Media.ORIENTATION
+    };
+    private static final String BUCKET_SELECTION = MediaStore.Images.Media.BUCKET_ID + " = ?";
+    private static final String NEWER_SELECTION = MediaStore.Images.Media.DATE_ADDED + " > ? OR ("
+            + MediaStore.Images.Media.DATE_ADDED + " = ? AND " + MediaStore.Images.Media._ID + " > ?)";
+    private static final String AFTER_SELECTION = MediaStore.Images.Media.DATE_ADDED + " < ? OR ("
+            + MediaStore.Images.Media.DATE_ADDED + " = ? AND " + MediaStore.Images.Media._ID + " < ?)";
+
+    private final ContentResolver contentResolver;
+    // The BUCKET_ID of the album whose images are loaded, null for every image
+    private final String bucketId;
+    private final ContentObserver observer;
+    private final AtomicInteger generation = new AtomicInteger();
+
+    MediaStoreSync(ContentResolver contentResolver) {
+        this(contentResolver, null);
+    }
+
+    /**
+     * @param bucketId The BUCKET_ID of the album to load the images of, or null for every image.
+     *                 MediaStore indexes the column, so an album's pages don't scan the whole table.
+     */
+    MediaStoreSync(ContentResolver contentResolver, String bucketId) {
+        this.contentResolver = contentResolver;
+        this.bucketId = bucketId;
+        // No handler so onChange is called straight from the binder thread, it only bumps a counter
+        observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                generation.incrementAndGet();
+            }
+        };
+        contentResolver.registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, observer);
+    }
+
+    /**
+     * @return A number that changes whenever the images on the phone change
+     */
+    int getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Stops watching for changes.
+     */
+    void close() {
+        contentResolver.unregisterContentObserver(observer);
+    }
+
+    /**
+     * Counts the images on the phone, or in the album. Only reads their ids so it is much faster than loading them.
+     * Does IO so shouldn't be called on the ui thread.
+     */
+    int queryCount() {
+        final long startTime = Metrics.startTimer();
+        final Cursor cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                COUNT_PROJECTION, select(null), selectArgs(null), null);
+        if(cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+            Metrics.MEDIASTORE_QUERY.recordSince(startTime);
+        }
+    }
+
+    /**
+     * Loads the orientation and location of up to limit images, newest first, skipping the
+     * first offset images. SQLite still steps over the skipped rows, so queryPageAfter is faster
+     * when the previous page is known.
+     * Does IO so shouldn't be called on the ui thread.
+     */
+    MediaIndex queryPage(int offset, int limit) {
+        return query(null, null, SORT_ORDER + " LIMIT " + limit + " OFFSET " + offset, limit);
+    }
+
+    /**
+     * Loads up to limit images that come straight after the image with the given date added and
+     * _ID, newest first. Uses the (date added, _ID) key instead of an offset so the query doesn't
+     * have to step over the images before it.
+     * Does IO so shouldn't be called on the ui thread.
+     */
+    MediaIndex queryPageAfter(long dateAdded, long id, int limit) {
+        final String date = Long.toString(dateAdded);
+        return query(AFTER_SELECTION, new String[]{date, date, Long.toString(id)},
+                SORT_ORDER + " LIMIT " + limit, limit);
+    }
+
+    /**
+     * Counts up to limit images that come straight after key, newest first, without loading them.
+     * Only reads the columns the order is keyed on, and the LIMIT means the cursor only has to
+     * step over limit rows to count them, so a scan of every image can be split into short
+     * queries whose counts are used as they arrive.
+     * Does IO so shouldn't be called on the ui thread.
+     * @param key The date added and _ID of the image to count after, Long.MAX_VALUE for both to
+     *            start from the newest image. Set to the last image counted.
+     * @return The number of images counted, less than limit once the oldest image has been counted
+     */
+    int countAfter(long[] key, int limit) {
+        final long startTime = Metrics.startTimer();
+        final String date = Long.toString(key[0]);
+        final Cursor cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                KEY_PROJECTION,
+                select(AFTER_SELECTION),
+                selectArgs(new String[]{date, date, Long.toString(key[1])}),
+                SORT_ORDER + " LIMIT " + limit);
+        if(cursor == null) {
+            return 0;
+        }
+        try {
+            final int count = cursor.getCount();
+            if(count != 0 && cursor.moveToLast()) {
+                key[0] = cursor.getLong(0);
+                key[1] = cursor.getLong(1);
+            }
+            return count;
+        } finally {
+            cursor.close();
+            Metrics.MEDIASTORE_QUERY.recordSince(startTime);
+        }
+    }
+
+    // MediaProvider passes the sort order straight to SQLite, so it can carry a LIMIT clause
+    private MediaIndex query(String selection, String[] selectionArgs, String sortOrder, int expectedCount) {
+        final long startTime = Metrics.startTimer();
+        final Cursor cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                PROJECTION,
+                select(selection),
+                selectArgs(selectionArgs),
+                sortOrder);
+        if(cursor == null) {
+            return MediaIndex.EMPTY;
+        }
+        try {
+            MediaIndex.Builder builder = new MediaIndex.Builder(expectedCount);
+            final int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
+            final int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
+            final int orientationColumn = cursor.getColumnIndex(MediaStore.Images.Media.ORIENTATION);
+            final int dateAddedColumn = cursor.getColumnIndex(MediaStore.Images.Media.DATE_ADDED);
+            final int dateModifiedColumn = cursor.getColumnIndex(MediaStore.Images.Media.DATE_MODIFIED);
+            final int widthColumn = cursor.getColumnIndex(MediaStore.Images.Media.WIDTH);
+            final int heightColumn = cursor.getColumnIndex(MediaStore.Images.Media.HEIGHT);
+            // Paths are copied into a reused buffer instead of allocating a String per row
+            final CharArrayBuffer path = new CharArrayBuffer(256);
+            //Iterate over the returned images and add them to the index
+            while(cursor.moveToNext()) {
+                if(cursor.isNull(dataColumn)) {
+                    continue;
+                }
+                cursor.copyStringToBuffer(dataColumn, path);
+                builder.add(cursor.getLong(idColumn), cursor.getLong(dateAddedColumn),
+                        cursor.getLong(dateModifiedColumn), cursor.getInt(orientationColumn),
+                        cursor.getInt(widthColumn), cursor.getInt(heightColumn), path.data, path.sizeCopied);
+            }
+            return builder.build();
+        } finally {
+            cursor.close();
+            Metrics.MEDIASTORE_QUERY.recordSince(startTime);
+        }
+    }
+
+    /**
+     * Loads the images with the given _IDs, newest first. Images that no longer exist are left out.
+     * Does IO so shouldn't be called on the ui thread.
+     * @param ids The _IDs, at most a few hundred so the selection stays short
+     */
+    MediaIndex queryIds(long[] ids, int from, int to) {
+        final StringBuilder selection = new StringBuilder(MediaStore.Images.Media._ID).append(" IN (");
+        for(int i = from; i != to; ++i) {
+            if(i != from) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        selection.append(')');
+        return query(selection.toString(), null, SORT_ORDER, to - from);
+    }
+
+    /**
+     * Sorts every image on the phone into albums by folder, in one pass over the images instead of
+     * a query per album. Ignores the album this MediaStoreSync loads, if it has one.
+     * Does IO so shouldn't be called on the ui thread.
+     */
+    AlbumIndex queryAlbums() {
+        final AlbumIndex.Builder builder = new AlbumIndex.Builder(AlbumIndex.EMPTY);
+        queryAlbums(null, null, builder);
+        return builder.build();
+    }
+
+    /**
+     * Brings albums up to date by only loading the images added since they were found. If images
+     * were removed as well the counts no longer add up, and every image is sorted into albums again.
+     * Must be called on a MediaStoreSync for every image, not one album.
+     * Does IO so shouldn't be called on the ui thread.
+     */
+    AlbumIndex updateAlbums(AlbumIndex albums) {
+        final int count = queryCount();
+        if(albums.getCount() != 0) {
+            final String date = Long.toString(albums.getNewestDateAdded());
+            final AlbumIndex.Builder builder = new AlbumIndex.Builder(albums);
+            queryAlbums(NEWER_SELECTION, new String[]{date, date, Long.toString(albums.getNewestId())}, builder);
+            if(builder.getImageCount() == count) {
+                return builder.build();
+            }
+        }
+        return queryAlbums();
+    }
+
+    private void queryAlbums(String selection, String[] selectionArgs, AlbumIndex.Builder builder) {
+        final long startTime = Metrics.startTimer();
+        final Cursor cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                ALBUM_PROJECTION,
+                selection,
+                selectionArgs,
+                SORT_ORDER);
+        if(cursor == null) {
+            return;
+        }
+        try {
+            // Only the first image of each album, its cover, needs more than its bucket reading
+            while(cursor.moveToNext()) {
+                final long bucket = cursor.getLong(0);
+                if(!builder.addToAlbum(bucket)) {
+                    final String name = cursor.getString(1);
+                    builder.addAlbum(bucket, name == null ? "" : name, cursor.getLong(2), cursor.getLong(3),
+                            cursor.getString(4), cursor.getInt(5));
+                }
+            }
+        } finally {
+            cursor.close();
+            Metrics.MEDIASTORE_QUERY.recordSince(startTime);
+        }
+    }
+
+    // Restricts a selection to the album, if there is one
+    private String select(String selection) {
+        if(bucketId == null) {
+            return selection;
+        }
+        return selection == null ? BUCKET_SELECTION : BUCKET_SELECTION + " AND (" + selection + ")";
+    }
+
+    private String[] selectArgs(String[] selectionArgs) {
+        if(bucketId == null) {
+            return selectionArgs;
+        }
+        if(selectionArgs == null) {
+            return new String[]{bucketId};
+        }
+        final String[] args = new String[selectionArgs.length + 1];
+        args[0] = bucketId;
+        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        return args;
+    }
+}
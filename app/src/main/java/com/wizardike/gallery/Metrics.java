@@ -0,0 +1,230 @@
+package com.wizardike.gallery;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the thumbnail pipeline.
+ * Recording is lock free and doesn't allocate so it is safe on the ui thread and in getView.
+ * When disabled, recording is a single branch on a static field, so release builds pay almost
+ * nothing for it. Read the numbers with dump, which is also what `adb shell dumpsys activity`
+ * prints, or with MetricsOverlay.
+ */
+final class Metrics {
+    private static final int BUCKET_COUNT = 64;
+
+    /**
+     * Whether anything is recorded. Only changed at startup so it is read without synchronization.
+     */
+    static boolean enabled = false;
+
+    /**
+     * A count of events.
+     */
+    static final class Counter {
+        final String name;
+        private final AtomicLong count = new AtomicLong();
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        void increment() {
+            if(enabled) {
+                count.incrementAndGet();
+            }
+        }
+
+        void add(long amount) {
+            if(enabled) {
+                count.addAndGet(amount);
+            }
+        }
+
+        long get() {
+            return count.get();
+        }
+    }
+
+    /**
+     * A distribution of durations in power of two buckets, bucket i counting durations of
+     * 2^i to 2^(i+1) - 1 nanoseconds. Percentiles are accurate to within a factor of two, which
+     * is plenty for spotting regressions.
+     */
+    static final class Histogram {
+        final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos) {
+            if(!enabled || nanos < 0) {
+                return;
+            }
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+        }
+
+        /**
+         * Records the time since startTime, a value from startTimer.
+         */
+        void recordSince(long startTime) {
+            if(enabled && startTime != 0) {
+                record(System.nanoTime() - startTime);
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        double getMeanMillis() {
+            final long samples = count.get();
+            return samples == 0 ? 0.0 : totalNanos.get() / (samples * 1e6);
+        }
+
+        /**
+         * @param fraction Between 0 and 1, for example 0.9 for the 90th percentile
+         * @return The upper end of the bucket holding the percentile, in milliseconds
+         */
+        double getPercentileMillis(double fraction) {
+            final long samples = count.get();
+            if(samples == 0) {
+                return 0.0;
+            }
+            final long rank = (long)Math.ceil(samples * fraction);
+            long seen = 0;
+            for(int i = 0; i != BUCKET_COUNT; ++i) {
+                seen += buckets.get(i);
+                if(seen >= rank) {
+                    return ((2L << i) - 1) / 1e6;
+                }
+            }
+            return Long.MAX_VALUE / 1e6;
+        }
+
+        private void reset() {
+            for(int i = 0; i != BUCKET_COUNT; ++i) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            totalNanos.set(0);
+        }
+    }
+
+    static final Histogram MEDIASTORE_QUERY = new Histogram("MediaStore query");
+    static final Histogram QUEUE_WAIT = new Histogram("Decode queue wait");
+    static final Histogram DISK_CACHE_LOAD = new Histogram("Disk cache load");
+    // Decoding a thumbnail from the original image, by ThumbnailTier
+    static final Histogram[] DECODE_BY_TIER = new Histogram[ThumbnailTier.COUNT];
+    static {
+        for(int tier = 0; tier != ThumbnailTier.COUNT; ++tier) {
+            DECODE_BY_TIER[tier] = new Histogram("Decode " + ThumbnailTier.SIZES[tier] + "px");
+        }
+    }
+
+    static final Counter MEMORY_CACHE_HITS = new Counter("Memory cache hits");
+    static final Counter MEMORY_CACHE_NEAREST_HITS = new Counter("Memory cache other tier hits");
+    static final Counter MEMORY_CACHE_MISSES = new Counter("Memory cache misses");
+    static final Counter DISK_CACHE_HITS = new Counter("Disk cache hits");
+    static final Counter DISK_CACHE_MISSES = new Counter("Disk cache misses");
+    static final Counter EXIF_THUMBNAIL_DECODES = new Counter("EXIF thumbnail decodes");
+    static final Counter SAMPLED_DECODES = new Counter("Sampled decodes");
+    // Work dropped from the decode queue because nothing wanted it any more
+    static final Counter CANCELLED_TASKS = new Counter("Cancelled before running");
+    // Results that arrived after their cell had moved on to another image
+    static final Counter STALE_RESULTS = new Counter("Stale results dropped");
+    // Thumbnails pushed out of the memory cache by newer ones
+    static final Counter EVICTIONS_FOR_SPACE = new Counter("Evicted for space");
+    // Thumbnails CacheGovernor shed because the system was low on memory
+    static final Counter EVICTIONS_UNDER_PRESSURE = new Counter("Evicted under memory pressure");
+    static final Counter BYTES_SHED = new Counter("Bytes shed under memory pressure");
+    static final Counter TRIM_MEMORY_CALLS = new Counter("onTrimMemory calls");
+    // Thumbnails ThumbnailWarmUpService decoded into the disk cache
+    static final Counter WARM_UP_DECODES = new Counter("Warm-up decodes");
+    // Images DuplicateFinder hashed because they weren't in its saved index
+    static final Counter PERCEPTUAL_HASHES = new Counter("Perceptual hashes");
+
+    private static final Histogram[] HISTOGRAMS;
+    static {
+        HISTOGRAMS = new Histogram[3 + ThumbnailTier.COUNT];
+        HISTOGRAMS[0] = MEDIASTORE_QUERY;
+        HISTOGRAMS[1] = QUEUE_WAIT;
+        HISTOGRAMS[2] = DISK_CACHE_LOAD;
+        System.arraycopy(DECODE_BY_TIER, 0, HISTOGRAMS, 3, ThumbnailTier.COUNT);
+    }
+    private static final Counter[] COUNTERS = {MEMORY_CACHE_HITS, MEMORY_CACHE_NEAREST_HITS,
+            MEMORY_CACHE_MISSES, DISK_CACHE_HITS, DISK_CACHE_MISSES, EXIF_THUMBNAIL_DECODES,
+            SAMPLED_DECODES, CANCELLED_TASKS, STALE_RESULTS, EVICTIONS_FOR_SPACE,
+            EVICTIONS_UNDER_PRESSURE, BYTES_SHED, TRIM_MEMORY_CALLS, WARM_UP_DECODES,
+            PERCEPTUAL_HASHES};
+
+    private Metrics() {}
+
+    /**
+     * @return A start time to pass to Histogram.recordSince, or 0 without reading the clock if
+     * metrics are disabled
+     */
+    static long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @return The fraction of thumbnail lookups the memory cache could show something for
+     */
+    static double getMemoryCacheHitRatio() {
+        return ratio(MEMORY_CACHE_HITS.get() + MEMORY_CACHE_NEAREST_HITS.get(), MEMORY_CACHE_MISSES.get());
+    }
+
+    /**
+     * @return The fraction of thumbnail loads the disk cache had
+     */
+    static double getDiskCacheHitRatio() {
+        return ratio(DISK_CACHE_HITS.get(), DISK_CACHE_MISSES.get());
+    }
+
+    private static double ratio(long hits, long misses) {
+        final long total = hits + misses;
+        return total == 0 ? 0.0 : (double)hits / total;
+    }
+
+    /**
+     * Writes every counter and histogram.
+     */
+    static void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Metrics" + (enabled ? "" : " (disabled)"));
+        for(Counter counter : COUNTERS) {
+            writer.print(prefix);
+            writer.println("  " + counter.name + ": " + counter.get());
+        }
+        writer.print(prefix);
+        writer.println(String.format("  Hit ratio: memory %.3f, disk %.3f", getMemoryCacheHitRatio(),
+                getDiskCacheHitRatio()));
+        for(Histogram histogram : HISTOGRAMS) {
+            writer.print(prefix);
+            writer.println(String.format("  %s: count %d, mean %.2fms, p50 <%.2fms, p90 <%.2fms, p99 <%.2fms",
+                    histogram.name, histogram.getCount(), histogram.getMeanMillis(),
+                    histogram.getPercentileMillis(0.5), histogram.getPercentileMillis(0.9),
+                    histogram.getPercentileMillis(0.99)));
+        }
+    }
+
+    /**
+     * Clears everything recorded so far, for example before measuring a scroll.
+     */
+    static void reset() {
+        for(Counter counter : COUNTERS) {
+            counter.count.set(0);
+        }
+        for(Histogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+    }
+}
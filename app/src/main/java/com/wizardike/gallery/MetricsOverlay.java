@@ -0,0 +1,68 @@
+package com.wizardike.gallery;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.util.TypedValue;
+import android.widget.TextView;
+
+/**
+ * Shows the most useful Metrics over the grid, updated twice a second, so performance can be
+ * watched while scrolling. Doesn't take touches so the grid underneath still works.
+ */
+class MetricsOverlay extends TextView {
+    private static final long UPDATE_INTERVAL_MILLIS = 500;
+    private static final int BACKGROUND_COLOR = 0xA0000000;
+
+    private final DecodeScheduler scheduler;
+    private final StringBuilder text = new StringBuilder();
+    private final Runnable update = new Runnable() {
+        @Override
+        public void run() {
+            setText(describe());
+            postDelayed(this, UPDATE_INTERVAL_MILLIS);
+        }
+    };
+
+    MetricsOverlay(Context context, DecodeScheduler scheduler) {
+        super(context);
+        this.scheduler = scheduler;
+        setBackgroundColor(BACKGROUND_COLOR);
+        setTextColor(Color.WHITE);
+        setTextSize(TypedValue.COMPLEX_UNIT_SP, 11);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        post(update);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(update);
+    }
+
+    private String describe() {
+        text.setLength(0);
+        text.append("grid ").append(StartupMetrics.getGridShownTime()).append("ms")
+                .append(StartupMetrics.wasFromSnapshot() ? " (snapshot)" : "")
+                .append(", first thumbnail ").append(StartupMetrics.getFirstThumbnailTime()).append("ms\n");
+        text.append(String.format("hit ratio memory %.2f disk %.2f, exif %d sampled %d\n",
+                Metrics.getMemoryCacheHitRatio(), Metrics.getDiskCacheHitRatio(),
+                Metrics.EXIF_THUMBNAIL_DECODES.get(), Metrics.SAMPLED_DECODES.get()));
+        for(Metrics.Histogram decode : Metrics.DECODE_BY_TIER) {
+            if(decode.getCount() != 0) {
+                text.append(String.format("%s p50 <%.1fms p90 <%.1fms\n", decode.name,
+                        decode.getPercentileMillis(0.5), decode.getPercentileMillis(0.9)));
+            }
+        }
+        text.append(String.format("queue %d, wait p90 <%.1fms, cancelled %d, stale %d",
+                scheduler.getQueueDepth(), Metrics.QUEUE_WAIT.getPercentileMillis(0.9),
+                Metrics.CANCELLED_TASKS.get(), Metrics.STALE_RESULTS.get()));
+        text.append(String.format("\nevicted %d, shed %d (%dKB) over %d trims",
+                Metrics.EVICTIONS_FOR_SPACE.get(), Metrics.EVICTIONS_UNDER_PRESSURE.get(),
+                Metrics.BYTES_SHED.get() / 1024, Metrics.TRIM_MEMORY_CALLS.get()));
+        return text.toString();
+    }
+}
@@ -0,0 +1,628 @@
+package com.wizardike.gallery;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The images on the phone in the order they are displayed, loaded from the MediaStore in pages of
+ * PAGE_SIZE images around the positions being shown instead of all at once. At most
+ * MAX_RESIDENT_PAGES pages are kept, the least recently used are dropped, so memory use and the
+ * time to show the first screen don't grow with the number of images.
+ * Asking for an image whose page isn't loaded returns nothing and starts loading the page, the
+ * Listener is told which positions changed when it arrives.
+ * Refreshing diffs the loaded pages around the position being shown against the MediaStore, so a
+ * grid only has to update the cells whose images were inserted, removed or changed.
+ * Refreshing doesn't wait for the images to be counted. The pages around the position are shown
+ * with an estimated count as soon as they load, then the images are counted newest first in
+ * chunks that grow the count as they arrive, and the exact count replaces the estimate once the
+ * last chunk is in.
+ * The pages around the last position shown are saved so the next start can show them straight
+ * away. They are reloaded from the MediaStore the first time they are used.
+ * Must only be used on the ui thread.
+ */
+class PagedMediaSource {
+    static final int PAGE_SIZE = 256;
+    // A screen of the densest grid plus the rows prefetched either side of it fit many times over
+    private static final int MAX_RESIDENT_PAGES = 16;
+    // Loaded pages either side of the refreshed position that are diffed against the MediaStore
+    private static final int WINDOW_RADIUS = 1;
+    // Images counted by the first query of a scan, each query after counts twice as many up to the max
+    private static final int SCAN_CHUNK_MIN = PAGE_SIZE * 4;
+    private static final int SCAN_CHUNK_MAX = PAGE_SIZE * 64;
+    private static final String SNAPSHOT_FILE = "media_window";
+    private static final String SNAPSHOT_PREFERENCES = "media_window";
+    private static final long[] NO_IDS = new long[0];
+
+    /**
+     * Told about changes to the images, on the ui thread.
+     */
+    interface Listener {
+        /**
+         * Called when the pages around the refreshed position have been reloaded, positions might
+         * have moved. The count is an estimate until onCountChanged is called with the exact one.
+         */
+        void onRefreshed(Update update);
+
+        /**
+         * Called when a page finishes loading.
+         * @param firstChanged The first position whose image might differ from before the page loaded
+         * @param changedCount The number of positions from firstChanged that might differ, can be 0
+         * @param staleIds The _IDs of images whose cached thumbnails are out of date
+         */
+        void onPageLoaded(int firstChanged, int changedCount, long[] staleIds);
+
+        /**
+         * Called as the images are counted after a refresh. Positions from the smaller of the
+         * counts on were added or removed.
+         */
+        void onCountChanged(int oldCount, int newCount);
+    }
+
+    /**
+     * What a refresh found. Positions in the window were diffed, positions after it are assumed
+     * to have only shifted by the change in count, and positions before it not to have moved.
+     * Pages outside the window are checked again when they are next used.
+     */
+    static final class Update {
+        final int oldCount;
+        final int newCount;
+        final int windowStart;
+        final int oldWindowCount;
+        final int newWindowCount;
+        // How the window changed, null if nothing was loaded to compare against
+        final DiffUtil.DiffResult diff;
+        // The _IDs of images whose cached thumbnails are out of date
+        final long[] staleIds;
+
+        Update(int oldCount, int newCount, int windowStart, int oldWindowCount, int newWindowCount,
+               DiffUtil.DiffResult diff, long[] staleIds) {
+            this.oldCount = oldCount;
+            this.newCount = newCount;
+            this.windowStart = windowStart;
+            this.oldWindowCount = oldWindowCount;
+            this.newWindowCount = newWindowCount;
+            this.diff = diff;
+            this.staleIds = staleIds;
+        }
+    }
+
+    /**
+     * A run of up to PAGE_SIZE images stored in a MediaIndex.
+     */
+    private static final class Page {
+        final MediaIndex index;
+        // The position in index of the page's first image
+        final int offset;
+        final int count;
+        // The version of the source the page was loaded at, pages from old versions are reloaded
+        final int version;
+        long lastUsed;
+
+        Page(MediaIndex index, int offset, int count, int version) {
+            this.index = index;
+            this.offset = offset;
+            this.count = count;
+            this.version = version;
+        }
+    }
+
+    /**
+     * How far a scan has got counting the images.
+     */
+    private static final class ScanProgress {
+        final int version;
+        final int count;
+        final boolean finished;
+
+        ScanProgress(int version, int count, boolean finished) {
+            this.version = version;
+            this.count = count;
+            this.finished = finished;
+        }
+    }
+
+    /**
+     * A page loaded on a worker thread.
+     */
+    private static final class LoadedPage {
+        final MediaIndex index;
+        final long[] staleIds;
+        // The rows that differ from the page it replaces
+        final int firstChanged;
+        final int changedCount;
+
+        LoadedPage(MediaIndex index, long[] staleIds, int firstChanged, int changedCount) {
+            this.index = index;
+            this.staleIds = staleIds;
+            this.firstChanged = firstChanged;
+            this.changedCount = changedCount;
+        }
+    }
+
+    // The application context, the source can outlive the activity that created it
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final MediaStoreSync sync;
+    private final DecodeScheduler scheduler;
+    private final Listener listener;
+    private final SparseArray<Page> pages = new SparseArray<>();
+    private final SparseArray<DecodeScheduler.Request> pageRequests = new SparseArray<>();
+    // -1 until the first refresh or a snapshot has been loaded, an estimate while a scan is counting
+    private int count = -1;
+    // Increased whenever the source is refreshed
+    private int version = 0;
+    // The version whose images are being counted, read by the scan to stop when refreshed again
+    private volatile int scanVersion = -1;
+    private long useCount = 0;
+    // True if the last refresh couldn't query the MediaStore
+    private boolean refreshFailed = false;
+
+    PagedMediaSource(Context context, MediaStoreSync sync, DecodeScheduler scheduler, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.sync = sync;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    /**
+     * @return True once the number of images is known or has been estimated
+     */
+    boolean isReady() {
+        return count >= 0;
+    }
+
+    int getCount() {
+        return Math.max(count, 0);
+    }
+
+    /**
+     * @return The MediaStore _ID of the image at position, or -1 if its page is still loading
+     */
+    long getId(int position) {
+        final Page page = getPage(position);
+        final int row = position % PAGE_SIZE;
+        return page == null || row >= page.count ? -1L : page.index.getId(page.offset + row);
+    }
+
+    /**
+     * Builds the path of the image at position. Allocates a new String every call.
+     * @return The path or null if its page is still loading
+     */
+    String getPath(int position) {
+        final Page page = getPage(position);
+        final int row = position % PAGE_SIZE;
+        return page == null || row >= page.count ? null : page.index.getPath(page.offset + row);
+    }
+
+    /**
+     * @return The orientation in degrees of the image at position, or 0 if its page is still loading
+     */
+    int getOrientation(int position) {
+        final Page page = getPage(position);
+        final int row = position % PAGE_SIZE;
+        return page == null || row >= page.count ? 0 : page.index.getOrientation(page.offset + row);
+    }
+
+    /**
+     * Loads the pages saved by saveSnapshot. They are shown until the MediaStore has been checked.
+     * Only memory maps a small file so it is fast enough for the ui thread.
+     * @return True if there was a snapshot
+     */
+    boolean loadSnapshot() {
+        SharedPreferences preferences = context.getSharedPreferences(SNAPSHOT_PREFERENCES, Context.MODE_PRIVATE);
+        final int firstPage = preferences.getInt("firstPage", -1);
+        final int savedCount = preferences.getInt("count", -1);
+        if(firstPage < 0 || savedCount < 0) {
+            return false;
+        }
+        MediaIndex snapshot = MediaIndex.load(new File(context.getCacheDir(), SNAPSHOT_FILE));
+        if(snapshot == null || (long)firstPage * PAGE_SIZE + snapshot.getCount() > savedCount) {
+            return false;
+        }
+        count = savedCount;
+        final int snapshotCount = snapshot.getCount();
+        for(int offset = 0, pageIndex = firstPage; offset < snapshotCount; offset += PAGE_SIZE, ++pageIndex) {
+            // An old version so the page is checked against the MediaStore when it is first used
+            pages.put(pageIndex, new Page(snapshot, offset, Math.min(PAGE_SIZE, snapshotCount - offset), -1));
+        }
+        return true;
+    }
+
+    /**
+     * Saves the page holding position and the one after it so the next start can show them
+     * before querying the MediaStore.
+     */
+    void saveSnapshot(int position) {
+        final int firstPage = Math.max(position, 0) / PAGE_SIZE;
+        final Page first = pages.get(firstPage);
+        if(first == null || first.version != version) {
+            return;
+        }
+        Page next = pages.get(firstPage + 1);
+        final Page second = first.count == PAGE_SIZE && next != null && next.version == version ? next : null;
+        final int savedCount = count;
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                MediaIndex.Builder builder = new MediaIndex.Builder(PAGE_SIZE * 2);
+                copyPage(first, builder);
+                if(second != null) {
+                    copyPage(second, builder);
+                }
+                try {
+                    builder.build().save(new File(context.getCacheDir(), SNAPSHOT_FILE));
+                    context.getSharedPreferences(SNAPSHOT_PREFERENCES, Context.MODE_PRIVATE).edit()
+                            .putInt("firstPage", firstPage)
+                            .putInt("count", savedCount)
+                            .apply();
+                } catch (IOException e) {
+                    Log.w("PagedMediaSource", "Failed to save the media snapshot", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return True if the last refresh failed to query the MediaStore and left the images as they were
+     */
+    boolean refreshFailed() {
+        return refreshFailed;
+    }
+
+    /**
+     * Reloads the pages around position, diffing them against what was loaded before, then calls
+     * the Listener and done without waiting for the images to be counted. The count is estimated
+     * until scanning the images corrects it. Every other page is reloaded the next time it is used.
+     * If the MediaStore can't be queried the images are left as they were, see refreshFailed.
+     * @param done Called on the ui thread once finished, can be null
+     */
+    void refresh(int position, final Runnable done) {
+        final int pageIndex = Math.max(position, 0) / PAGE_SIZE;
+        final ArrayList<Page> window = new ArrayList<>();
+        int firstPage = pageIndex;
+        if(pages.get(pageIndex) != null) {
+            // The run of loaded pages around position, every page but the last must be full for
+            // positions in the window to line up with positions in the MediaStore
+            while(firstPage > Math.max(0, pageIndex - WINDOW_RADIUS) && isFull(pages.get(firstPage - 1))) {
+                --firstPage;
+            }
+            for(int i = firstPage; i <= pageIndex + WINDOW_RADIUS; ++i) {
+                final Page page = pages.get(i);
+                if(page == null) {
+                    break;
+                }
+                window.add(page);
+                if(!isFull(page)) {
+                    break;
+                }
+            }
+        }
+        final int windowPage = firstPage;
+        final int oldCount = getCount();
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                Update loadedUpdate;
+                MediaIndex loadedIndex;
+                try {
+                    if(window.isEmpty()) {
+                        loadedIndex = sync.queryPage(pageIndex * PAGE_SIZE, PAGE_SIZE);
+                        final int windowStart = pageIndex * PAGE_SIZE;
+                        loadedUpdate = new Update(oldCount,
+                                estimateCount(oldCount, windowStart, 0, PAGE_SIZE, loadedIndex.getCount()),
+                                windowStart, 0, loadedIndex.getCount(), null, NO_IDS);
+                    } else {
+                        MediaIndex.Builder builder = new MediaIndex.Builder(window.size() * PAGE_SIZE);
+                        for(Page page : window) {
+                            copyPage(page, builder);
+                        }
+                        final MediaIndex old = builder.build();
+                        // The same number of positions, images pushed out of the end by inserts show
+                        // up as removed from the window and inserted after it
+                        loadedIndex = sync.queryPage(windowPage * PAGE_SIZE, old.getCount());
+                        final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new IndexDiffCallback(old, loadedIndex), false);
+                        final int windowStart = windowPage * PAGE_SIZE;
+                        loadedUpdate = new Update(oldCount,
+                                estimateCount(oldCount, windowStart, old.getCount(), old.getCount(), loadedIndex.getCount()),
+                                windowStart, old.getCount(), loadedIndex.getCount(),
+                                diff, findStaleIds(new Page(old, 0, old.getCount(), -1), loadedIndex));
+                    }
+                } catch (RuntimeException e) {
+                    // For example a SecurityException if the permission to read the images was revoked
+                    Log.w("PagedMediaSource", "Failed to refresh the images", e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Nothing changes, the caller can try again later
+                            refreshFailed = true;
+                            if(count < 0) {
+                                count = 0;
+                            }
+                            if(done != null) {
+                                done.run();
+                            }
+                        }
+                    });
+                    return;
+                }
+                final Update update = loadedUpdate;
+                final MediaIndex index = loadedIndex;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        refreshFailed = false;
+                        ++version;
+                        count = update.newCount;
+                        putWindow(update.windowStart / PAGE_SIZE, index);
+                        listener.onRefreshed(update);
+                        startScan();
+                        if(done != null) {
+                            done.run();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Estimates the number of images from a reloaded window. If the window came back short it
+     * reached the oldest image, otherwise the images after it are assumed to be the ones there were before.
+     * @param requested The number of images the window was queried for
+     */
+    private static int estimateCount(int oldCount, int windowStart, int oldWindowCount, int requested,
+                                     int newWindowCount) {
+        final int windowEnd = windowStart + newWindowCount;
+        if(newWindowCount < requested) {
+            return windowEnd;
+        }
+        return Math.max(oldCount + newWindowCount - oldWindowCount, windowEnd);
+    }
+
+    /**
+     * Counts the images in chunks on worker threads, newest first. Each chunk can only grow the
+     * estimated count, the last one sets the exact count. Chunks that finish while the ui thread is
+     * busy are coalesced so the Listener is told once with the latest count.
+     * A refresh stops the scan of the previous version.
+     */
+    private void startScan() {
+        final int scanVersion = version;
+        this.scanVersion = scanVersion;
+        final AtomicReference<ScanProgress> pending = new AtomicReference<>();
+        scanChunk(scanVersion, new long[]{Long.MAX_VALUE, Long.MAX_VALUE}, 0, SCAN_CHUNK_MIN, pending);
+    }
+
+    // Called on the ui thread for the first chunk and on a worker thread for the rest
+    private void scanChunk(final int scanVersion, final long[] key, final int counted, final int limit,
+                           final AtomicReference<ScanProgress> pending) {
+        // Below page loads so scrolling to a page the scan hasn't counted yet isn't held up by it
+        scheduler.submit(null, DecodeScheduler.PRIORITY_VISIBLE, new DecodeScheduler.Task<Integer>() {
+            @Override
+            public Integer run() {
+                return scanVersion == PagedMediaSource.this.scanVersion ? sync.countAfter(key, limit) : -1;
+            }
+        }, new DecodeScheduler.Callback<Integer>() {
+            @Override
+            public void onResult(Integer result) {
+                if(result != null && result < 0) {
+                    // Refreshed again, the newer scan takes over
+                    return;
+                }
+                // If the query failed the count so far is kept as the count rather than leaving an estimate
+                final int total = result == null ? counted : counted + result;
+                final boolean finished = result == null || result < limit;
+                if(pending.getAndSet(new ScanProgress(scanVersion, total, finished)) == null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            applyScan(pending.getAndSet(null));
+                        }
+                    });
+                }
+                if(!finished) {
+                    scanChunk(scanVersion, key, total, Math.min(limit * 2, SCAN_CHUNK_MAX), pending);
+                }
+            }
+        });
+    }
+
+    private void applyScan(ScanProgress progress) {
+        if(progress.version != version) {
+            return;
+        }
+        final int oldCount = count;
+        count = progress.finished ? progress.count : Math.max(count, progress.count);
+        if(count != oldCount) {
+            listener.onCountChanged(oldCount, count);
+        }
+    }
+
+    private static boolean isFull(Page page) {
+        return page != null && page.count == PAGE_SIZE;
+    }
+
+    /**
+     * Splits the images loaded by refresh into pages. A short last page that isn't the end of the
+     * images is kept at an old version, so it is shown while the rest of it reloads.
+     */
+    private void putWindow(int firstPage, MediaIndex index) {
+        final int windowCount = index.getCount();
+        for(int offset = 0, pageIndex = firstPage; offset < windowCount; offset += PAGE_SIZE, ++pageIndex) {
+            final int pageCount = Math.min(PAGE_SIZE, windowCount - offset);
+            final boolean truncated = pageCount < PAGE_SIZE && pageIndex * PAGE_SIZE + pageCount < count;
+            putPage(pageIndex, new Page(index, offset, pageCount, truncated ? -1 : version));
+        }
+    }
+
+    private Page getPage(int position) {
+        final int pageIndex = position / PAGE_SIZE;
+        final Page page = pages.get(pageIndex);
+        if(page == null || page.version != version) {
+            requestPage(pageIndex);
+        }
+        if(page != null) {
+            page.lastUsed = ++useCount;
+        }
+        return page;
+    }
+
+    private void requestPage(final int pageIndex) {
+        if(pageRequests.get(pageIndex) != null || !isReady() || pageIndex * PAGE_SIZE >= count) {
+            return;
+        }
+        final Page old = pages.get(pageIndex);
+        final int requestVersion = version;
+        // Carry on from the end of the previous page if it is loaded, which is faster than an offset
+        final Page previous = pages.get(pageIndex - 1);
+        final boolean afterPrevious = previous != null && previous.version == version && previous.count == PAGE_SIZE;
+        final int last = afterPrevious ? previous.offset + previous.count - 1 : 0;
+        final long afterDateAdded = afterPrevious ? previous.index.getDateAdded(last) : 0L;
+        final long afterId = afterPrevious ? previous.index.getId(last) : 0L;
+        pageRequests.put(pageIndex, scheduler.submit("page:" + requestVersion + ":" + pageIndex,
+                DecodeScheduler.PRIORITY_URGENT, new DecodeScheduler.Task<LoadedPage>() {
+            @Override
+            public LoadedPage run() {
+                final MediaIndex index = afterPrevious
+                        ? sync.queryPageAfter(afterDateAdded, afterId, PAGE_SIZE)
+                        : sync.queryPage(pageIndex * PAGE_SIZE, PAGE_SIZE);
+                final int newCount = index.getCount();
+                // Rows that still hold the same image don't need their cells updating
+                int firstChanged = 0;
+                int end = old == null ? newCount : Math.max(old.count, newCount);
+                if(old != null) {
+                    while(firstChanged < end && isSameImage(old, firstChanged, index)) {
+                        ++firstChanged;
+                    }
+                    while(end > firstChanged && isSameImage(old, end - 1, index)) {
+                        --end;
+                    }
+                }
+                return new LoadedPage(index, findStaleIds(old, index), firstChanged, end - firstChanged);
+            }
+        }, new DecodeScheduler.Callback<LoadedPage>() {
+            @Override
+            public void onResult(final LoadedPage result) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pageRequests.remove(pageIndex);
+                        if(result == null) {
+                            // The query failed, the old page stays and the next getPage tries again
+                            return;
+                        }
+                        final Page current = pages.get(pageIndex);
+                        if(requestVersion != version && current != null && current.version == version) {
+                            // A refresh has already stored a newer page
+                            return;
+                        }
+                        // A page from before a refresh is still better than nothing, it is
+                        // reloaded when next used
+                        putPage(pageIndex, new Page(result.index, 0, result.index.getCount(), requestVersion));
+                        if(current == old) {
+                            listener.onPageLoaded(pageIndex * PAGE_SIZE + result.firstChanged, result.changedCount,
+                                    result.staleIds);
+                        } else {
+                            // The changes were found against a page a refresh has since replaced
+                            final int changedCount = Math.max(current == null ? 0 : current.count,
+                                    result.index.getCount());
+                            listener.onPageLoaded(pageIndex * PAGE_SIZE, changedCount,
+                                    findStaleIds(current, result.index));
+                        }
+                    }
+                });
+            }
+        }));
+    }
+
+    private void putPage(int pageIndex, Page page) {
+        page.lastUsed = ++useCount;
+        pages.put(pageIndex, page);
+        if(pages.size() > MAX_RESIDENT_PAGES) {
+            int leastRecentlyUsed = 0;
+            for(int i = 1, size = pages.size(); i != size; ++i) {
+                if(pages.valueAt(i).lastUsed < pages.valueAt(leastRecentlyUsed).lastUsed) {
+                    leastRecentlyUsed = i;
+                }
+            }
+            pages.removeAt(leastRecentlyUsed);
+        }
+    }
+
+    /**
+     * Finds the images in old that were removed, changed or moved to another page in newer.
+     * Images that only moved lose their cached thumbnails too, which only costs a disk cache load.
+     */
+    private static long[] findStaleIds(Page old, MediaIndex newer) {
+        if(old == null) {
+            return NO_IDS;
+        }
+        final long[] staleIds = old.index.findStaleIds(old.offset, old.count, newer);
+        return staleIds.length == 0 ? NO_IDS : staleIds;
+    }
+
+    /**
+     * @return True if row of old has the same unchanged image as row of newer
+     */
+    private static boolean isSameImage(Page old, int row, MediaIndex newer) {
+        if(row >= old.count || row >= newer.getCount()) {
+            return false;
+        }
+        final int position = old.offset + row;
+        return old.index.getId(position) == newer.getId(row)
+                && old.index.getDateModified(position) == newer.getDateModified(row)
+                && old.index.pathEquals(position, newer, row);
+    }
+
+    /**
+     * Compares images by _ID, and their contents by modification date and path.
+     */
+    private static final class IndexDiffCallback extends DiffUtil.Callback {
+        private final MediaIndex old;
+        private final MediaIndex newer;
+
+        IndexDiffCallback(MediaIndex old, MediaIndex newer) {
+            this.old = old;
+            this.newer = newer;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return old.getCount();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newer.getCount();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return old.getId(oldPosition) == newer.getId(newPosition);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return old.getDateModified(oldPosition) == newer.getDateModified(newPosition)
+                    && old.pathEquals(oldPosition, newer, newPosition);
+        }
+    }
+
+    private static void copyPage(Page page, MediaIndex.Builder builder) {
+        final MediaIndex index = page.index;
+        for(int position = page.offset, end = page.offset + page.count; position != end; ++position) {
+            builder.add(index.getId(position), index.getDateAdded(position), index.getDateModified(position),
+                    index.getOrientation(position), index.getWidth(position), index.getHeight(position),
+                    index.getPath(position));
+        }
+    }
+}
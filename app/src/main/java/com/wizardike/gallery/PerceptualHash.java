@@ -0,0 +1,84 @@
+package com.wizardike.gallery;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+
+/**
+ * Difference hashes (dHash) of images, 64 bit fingerprints that change little when an image is
+ * resized, recompressed or slightly edited, so similar images have hashes a few bits apart.
+ * The image is averaged down to 9 by 8 cells of brightness and each bit records whether a cell is
+ * darker than the one to its right. Hashes are taken from thumbnails, which are already small, so
+ * hashing is cheap next to decoding.
+ * All methods are thread safe, each thread hashes with its own reusable buffers.
+ */
+final class PerceptualHash {
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 8;
+    private static final ThreadLocal<HashState> hashState = new ThreadLocal<HashState>() {
+        @Override
+        protected HashState initialValue() {
+            return new HashState();
+        }
+    };
+
+    private PerceptualHash() {}
+
+    /**
+     * Reusable buffers for hashing, one per hashing thread.
+     */
+    private static class HashState {
+        int[] pixels = new int[0];
+        final long[] sums = new long[COLUMNS * ROWS];
+        final int[] counts = new int[COLUMNS * ROWS];
+    }
+
+    /**
+     * Hashes a bitmap. The bitmap must be readable, so not a hardware bitmap.
+     */
+    static long dHash(Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final HashState state = hashState.get();
+        if(state.pixels.length < width * height) {
+            state.pixels = new int[width * height];
+        }
+        final int[] pixels = state.pixels;
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        final long[] sums = state.sums;
+        final int[] counts = state.counts;
+        Arrays.fill(sums, 0L);
+        Arrays.fill(counts, 0);
+        for(int y = 0; y != height; ++y) {
+            final int rowStart = y * ROWS / height * COLUMNS;
+            for(int x = 0; x != width; ++x) {
+                final int pixel = pixels[y * width + x];
+                // Rec. 601 luma, scaled by 1000 to stay in integers
+                final int luma = ((pixel >> 16) & 0xff) * 299 + ((pixel >> 8) & 0xff) * 587 + (pixel & 0xff) * 114;
+                final int cell = rowStart + x * COLUMNS / width;
+                sums[cell] += luma;
+                ++counts[cell];
+            }
+        }
+        long hash = 0L;
+        for(int row = 0; row != ROWS; ++row) {
+            for(int column = 0; column != COLUMNS - 1; ++column) {
+                final int left = row * COLUMNS + column;
+                final int right = left + 1;
+                // Compares the cells' average brightness without dividing
+                hash <<= 1;
+                if(sums[left] * counts[right] < sums[right] * counts[left]) {
+                    hash |= 1L;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return The number of bits that differ between two hashes, 0 for identical images
+     */
+    static int distance(long hash, long otherHash) {
+        return Long.bitCount(hash ^ otherHash);
+    }
+}
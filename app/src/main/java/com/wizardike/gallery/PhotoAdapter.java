@@ -1,34 +1,41 @@
 package com.wizardike.gallery;
 
-import android.app.Activity;
-import android.content.ContentResolver;
-import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.media.ThumbnailUtils;
-import android.provider.MediaStore;
-import android.util.Log;
-import android.util.LruCache;
-import android.util.Pair;
+import android.content.Context;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.util.ListUpdateCallback;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
-import android.widget.ImageView;
-import android.widget.ProgressBar;
-
-import java.util.Arrays;
-import java.util.concurrent.Executor;
 
 /**
  * Loads images that are on the phone as needed and wraps them in Views.
+ * Items have stable ids, the images' MediaStore _IDs, and changes to the images are passed on as
+ * fine grained notifications so only the affected cells are rebound.
  */
-public class PhotoAdapter extends BaseAdapter {
-    private String[] imageLocations;
-    private int[] imageOrientations;
-    private final Activity activity;
-    private final Executor executor;
-    private int thumbnailSize = 200;
-    private LruCache<String, Bitmap> memoryCache;
+public class PhotoAdapter extends RecyclerView.Adapter<PhotoAdapter.ViewHolder> {
+    private final PagedMediaSource source;
+    private final MediaStoreSync sync;
+    // False when showing one album, only the grid of every image saves a snapshot
+    private final boolean allImages;
+    // The MediaStoreSync generation source was last refreshed at, -1 until a refresh succeeds
+    private int syncedGeneration = -1;
+    // Loads and caches the thumbnails, shared with the rest of the app
+    private final ImageEngine engine;
+    // Cancelled when the activity finishes
+    private final RequestGroup requests;
+    // The ThumbnailTier that fits the grid's cells
+    private int tier = ThumbnailTier.DEFAULT;
+    // Drawn by every cell that is waiting for its thumbnail
+    private final Drawable placeholder;
+    private OnImageClickListener onImageClickListener;
+    // The grid the adapter is attached to, its cell size picks the tier
+    private RecyclerView recyclerView;
+    // Pending prefetch requests by position
+    private final SparseArray<DecodeScheduler.Request> prefetchRequests = new SparseArray<>();
 
     /**
      * The type of function that will be called when a PhotoAdapter finishes loading.
@@ -37,267 +44,468 @@ public class PhotoAdapter extends BaseAdapter {
         void onCreateFinished(PhotoAdapter adapter);
     }
 
+    /**
+     * The type of function that will be called when an image in the grid is clicked.
+     */
+    interface OnImageClickListener {
+        void onImageClick(int position);
+    }
+
     /**
      * Creates a PhotoAdapter.
-     * @param activity The Activity that will use the PhotoAdapter.
-     * @param executor An Executor to load images on.
+     * If the images around the position shown last time the app ran were saved, the adapter starts
+     * with them and is ready to use as soon as the constructor returns, see isReady. The images are
+     * counted and checked against the content provider in the background.
+     * @param context Any context. Only the application context is kept, so the adapter can be
+     *                kept across configuration changes and used by the next activity.
+     * @param engine The ImageEngine to load images with.
+     * @param requests A RequestGroup the activity cancels when it finishes.
+     * @param bucketId The MediaStore BUCKET_ID of the album to show, or null to show every image.
+     * @param startPosition The position that will be shown first, its page of images is loaded first
      * @param callback A function the will be called when the PhotoAdapter has been fully created and
      *                 is ready to use.
      */
-    PhotoAdapter(Activity activity, Executor executor, final CreatedCallback callback) {
-        this.activity = activity;
-        this.executor = executor;
-        executor.execute(new Runnable() {
+    PhotoAdapter(Context context, final ImageEngine engine, RequestGroup requests, String bucketId,
+                 int startPosition, final CreatedCallback callback) {
+        this.engine = engine;
+        this.requests = requests;
+        this.sync = new MediaStoreSync(context.getContentResolver(), bucketId);
+        this.allImages = bucketId == null;
+        this.placeholder = new ColorDrawable(ContextCompat.getColor(context, R.color.thumbnailPlaceholder));
+        this.source = new PagedMediaSource(context, sync, engine.getScheduler(), new PagedMediaSource.Listener() {
             @Override
-            public void run() {
-                //Get all the image file names from a content provider
-                Pair<int[], String[]> imageDescriptions = getImageDescriptions();
-                imageOrientations = imageDescriptions.first;
-                imageLocations = imageDescriptions.second;
-
-                // Get max available VM memory, exceeding this amount will throw an
-                // OutOfMemory exception. Stored in kilobytes as LruCache takes an
-                // int in its constructor.
-                final int maxMemory = (int)(Runtime.getRuntime().maxMemory() / 1024);
-
-                // Use 1/4th of the available memory for this memory cache or enough memory for all images.
-                final int cacheSize = Math.min(maxMemory / 4, (imageLocations.length * 270 * 270 * 4) / 1024);
-
-                memoryCache = new LruCache<String, Bitmap>(cacheSize) {
-                    @Override
-                    protected int sizeOf(String key, Bitmap bitmap) {
-                        // The cache size will be measured in kilobytes rather than
-                        // number of items.
-                        return bitmap.getByteCount() / 1024;
-                    }
-                };
+            public void onRefreshed(PagedMediaSource.Update update) {
+                engine.forgetThumbnails(update.staleIds);
+                // positions might have moved
+                cancelPrefetch();
+                engine.getCacheGovernor().setImageCount(source.getCount());
+                dispatchUpdate(update);
+            }
 
-                //signal that the adapter has finished loaded
-                callback.onCreateFinished(PhotoAdapter.this);
+            @Override
+            public void onPageLoaded(int firstChanged, int changedCount, long[] staleIds) {
+                engine.forgetThumbnails(staleIds);
+                final int end = Math.min(firstChanged + changedCount, getItemCount());
+                if(end > firstChanged) {
+                    notifyItemRangeChanged(firstChanged, end - firstChanged);
+                }
+            }
+
+            @Override
+            public void onCountChanged(int oldCount, int newCount) {
+                engine.getCacheGovernor().setImageCount(newCount);
+                if(newCount > oldCount) {
+                    notifyItemRangeInserted(oldCount, newCount - oldCount);
+                } else {
+                    notifyItemRangeRemoved(newCount, oldCount - newCount);
+                }
             }
         });
+        setHasStableIds(true);
+
+        // Start from the images we saved last time if we have them. Loading only memory maps a
+        // small file so it is fast enough for the ui thread.
+        if(allImages && source.loadSnapshot()) {
+            engine.getCacheGovernor().setImageCount(source.getCount());
+        }
+        refresh(startPosition, callback);
     }
 
     /**
-     * Reloads all the images if they have changed since the adapter whose last created or recreated.
+     * @return True if the adapter has images to show, which can be before it has finished loading
+     */
+    boolean isReady() {
+        return source.isReady();
+    }
+
+    /**
+     * Starts loading the thumbnails of a range of images into the memory cache ahead of them being
+     * displayed, for example the images that will be on screen when the app starts.
+     * Must be called on the ui thread.
+     */
+    void preloadThumbnails(int firstPosition, int count, int priority) {
+        final int end = Math.min(source.getCount(), firstPosition + count);
+        for(int i = Math.max(firstPosition, 0); i < end; ++i) {
+            final long id = source.getId(i);
+            if(id != -1L && engine.getThumbnail(id, tier) == null) {
+                requestThumbnail(id, source.getPath(i), getOrientation(i), tier, priority, null);
+            }
+        }
+    }
+
+    /**
+     * Reloads the images that have changed since the adapter was last created or recreated.
+     * Thumbnails of images that haven't changed stay cached.
+     * Must be called on the ui thread.
+     * @param position The position that will be shown, its page of images is loaded first
      * @param callback A function that will be called on the ui thread when the adapter has finished recreating
      */
-    public void reCreate(final CreatedCallback callback) {
-        executor.execute(new Runnable() {
+    public void reCreate(int position, final CreatedCallback callback) {
+        if(sync.getGeneration() == syncedGeneration) {
+            //the MediaStore hasn't reported any changes, no need to query it
+            callback.onCreateFinished(this);
+            return;
+        }
+        refresh(position, callback);
+    }
+
+    private void refresh(int position, final CreatedCallback callback) {
+        final int generation = sync.getGeneration();
+        source.refresh(position, new Runnable() {
             @Override
             public void run() {
-                final Pair<int[], String[]> imageDescriptions = getImageDescriptions();
-                final boolean equal = Arrays.equals(imageDescriptions.first, imageOrientations)
-                        && Arrays.equals(imageDescriptions.second, imageLocations);
-
-                activity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if(equal) {
-                            //the data hasn't changed
-                            callback.onCreateFinished(PhotoAdapter.this);
-                        } else {
-                            //the data has changed
-                            PhotoAdapter.this.imageOrientations = imageDescriptions.first;
-                            PhotoAdapter.this.imageLocations = imageDescriptions.second;
-                            memoryCache.evictAll();
-                            PhotoAdapter.this.notifyDataSetChanged();
-                            callback.onCreateFinished(PhotoAdapter.this);
-                        }
-                    }
-                });
+                if(!source.refreshFailed()) {
+                    syncedGeneration = generation;
+                }
+                callback.onCreateFinished(PhotoAdapter.this);
             }
         });
     }
 
     /**
-     * Gets the orientation and locations of all images on the phone
-     * @return A pair containing orientations and locations
+     * Saves the images around position so the next start can show them straight away.
+     * Must be called on the ui thread.
      */
-    private Pair<int[], String[]> getImageDescriptions() {
-        String[] imageLocations;
-        int[] imageOrientations = null;
-
-        ContentResolver contentResolver = PhotoAdapter.this.activity.getContentResolver();
-        final String[] projection = { MediaStore.Images.Media.DATA, MediaStore.Images.Media.ORIENTATION };
-        final Cursor cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                projection,
-                null,
-                null,
-                MediaStore.Images.Media.DATE_ADDED + " DESC");
-        if(cursor != null) {
-            imageLocations = new String[cursor.getCount()];
-            imageOrientations = new int[cursor.getCount()];
-            int i = 0;
-            final int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-            final int orientationColumn = cursor.getColumnIndex(MediaStore.Images.Media.ORIENTATION);
-            //Iterate over the returned image names and add them to an array
-            if (cursor.moveToFirst()) {
-
-                do {
-                    final String data = cursor.getString(dataColumn);
-                    final int orientation = cursor.getInt(orientationColumn);
-                    imageLocations[i] = data;
-                    imageOrientations[i] = orientation;
-                    ++i;
-                } while (cursor.moveToNext());
+    void saveSnapshot(int position) {
+        if(allImages) {
+            source.saveSnapshot(position);
+        }
+    }
+
+    /**
+     * Notifies the grid of the changes a refresh found. The diff of the window around the position
+     * shown is passed on as is, the rest of the change in count is applied after the window.
+     */
+    private void dispatchUpdate(PagedMediaSource.Update update) {
+        if(update.diff == null) {
+            notifyDataSetChanged();
+            return;
+        }
+        final int windowStart = update.windowStart;
+        update.diff.dispatchUpdatesTo(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                notifyItemRangeInserted(windowStart + position, count);
             }
-            cursor.close();
-        } else {
-            imageLocations = new String[]{};
+
+            @Override
+            public void onRemoved(int position, int count) {
+                notifyItemRangeRemoved(windowStart + position, count);
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                notifyItemMoved(windowStart + fromPosition, windowStart + toPosition);
+            }
+
+            @Override
+            public void onChanged(int position, int count, Object payload) {
+                notifyItemRangeChanged(windowStart + position, count);
+            }
+        });
+        final int tailChange = (update.newCount - update.oldCount) - (update.newWindowCount - update.oldWindowCount);
+        if(tailChange > 0) {
+            notifyItemRangeInserted(update.newCount - tailChange, tailChange);
+        } else if(tailChange < 0) {
+            notifyItemRangeRemoved(update.newCount, -tailChange);
         }
+    }
+
+    /**
+     * Loads thumbnails at low priority that are likely to be displayed soon, and cancels loading
+     * ones from previous calls that are no longer in the range.
+     * Must be called on the ui thread.
+     * @param firstPosition The first position to load
+     * @param count The number of positions to load
+     */
+    void prefetch(int firstPosition, int count) {
+        final int end = Math.min(source.getCount(), firstPosition + count);
+        for(int i = prefetchRequests.size() - 1; i >= 0; --i) {
+            final int position = prefetchRequests.keyAt(i);
+            if(position < firstPosition || position >= end) {
+                prefetchRequests.valueAt(i).cancel();
+                prefetchRequests.removeAt(i);
+            }
+        }
+        for(int i = Math.max(firstPosition, 0); i < end; ++i) {
+            if(prefetchRequests.get(i) != null) {
+                continue;
+            }
+            // Also loads the page holding the image ahead of it being shown
+            final long id = source.getId(i);
+            if(id != -1L && engine.getThumbnail(id, tier) == null) {
+                prefetchRequests.put(i, requestThumbnail(id, source.getPath(i), getOrientation(i), tier,
+                        DecodeScheduler.PRIORITY_PREFETCH, null));
+            }
+        }
+    }
+
+    /**
+     * Cancels all loading started by prefetch.
+     */
+    void cancelPrefetch() {
+        for(int i = 0, size = prefetchRequests.size(); i != size; ++i) {
+            prefetchRequests.valueAt(i).cancel();
+        }
+        prefetchRequests.clear();
+    }
+
+    /**
+     * @return The smoothed time it takes to load a thumbnail that isn't in the memory cache
+     */
+    long getAverageLoadNanos() {
+        return engine.getAverageLoadNanos();
+    }
 
-        return Pair.create(imageOrientations, imageLocations);
+    /**
+     * Must be called when the activity resumes.
+     */
+    void onResume() {
+        engine.onResume();
+    }
+
+    /**
+     * Stops watching the MediaStore for changes. The adapter shouldn't be used afterwards, the
+     * thumbnails it loaded stay cached in the engine.
+     */
+    void destroy() {
+        sync.close();
+    }
+
+    /**
+     * Sets the function that will be called when an image is clicked.
+     */
+    void setOnImageClickListener(OnImageClickListener listener) {
+        onImageClickListener = listener;
     }
 
     /**
      * Stores the current information about an item in the adapter.
      */
-    private class ViewHolder {
-        int position;
-        ImageView image;
-        ProgressBar progressBar;
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final ThumbnailCellView cell;
+        DecodeScheduler.Request request;
+        // The cached thumbnail the cell shows, null while it shows the placeholder
+        ThumbnailMemoryCache.Entry entry;
+        // The _ID of the image the cell is for, -1 while its page loads
+        long id;
+
+        ViewHolder(ThumbnailCellView cell) {
+            super(cell);
+            this.cell = cell;
+        }
     }
 
+    /**
+     * Picks the thumbnail tier to load from the width of the grid's cells.
+     * Must be called on the ui thread.
+     * @param screenCells How many cells fit on the screen
+     */
+    void setCellSize(int cellSize, int screenCells) {
+        final int newTier = ThumbnailTier.forCellSize(cellSize);
+        if(newTier != tier) {
+            tier = newTier;
+            // Anything being prefetched is now the wrong size
+            cancelPrefetch();
+        }
+        engine.getCacheGovernor().setGrid(tier, screenCells);
+    }
+
+    /**
+     * Changes the bitmap configs new thumbnails are decoded in, one of the ThumbnailFormat modes.
+     * Thumbnails that are already cached are still shown.
+     * Must be called on the ui thread.
+     */
+    void setThumbnailFormat(int mode) {
+        cancelPrefetch();
+        engine.setThumbnailFormat(mode);
+    }
+
+    /**
+     * @return The file name of the image at position or null if it is still loading
+     */
     public String getFileName(int position) {
-        return imageLocations[position];
+        return source.getPath(position);
     }
 
+    /**
+     * @return How far the MediaStore says the image at position needs rotating clockwise in degrees
+     */
     public int getOrientation(int position) {
-        return imageOrientations[position];
+        return source.getOrientation(position);
     }
 
     /**
      * Gets the number of images in the adapter.
-     * The adapter must have finished loaded.
      */
     @Override
-    public int getCount() {
-        return imageLocations.length;
+    public int getItemCount() {
+        return source.getCount();
     }
 
-
     /**
-     * @return The file name of the image at position i
+     * @return The MediaStore _ID of the image at position, or NO_ID while its page loads
      */
     @Override
-    public Object getItem(int i) {
-        return imageLocations[i];
+    public long getItemId(int position) {
+        final long id = source.getId(position);
+        return id == -1L ? RecyclerView.NO_ID : id;
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        this.recyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        // A recreated activity's grid can attach before the old one detaches
+        if(this.recyclerView == recyclerView) {
+            this.recyclerView = null;
+        }
     }
 
-    /**
-     * Get a unique id for item at position i
-     */
     @Override
-    public long getItemId(int i) {
-        return i;
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        final ViewHolder vh = new ViewHolder(new ThumbnailCellView(parent.getContext(), placeholder));
+        vh.cell.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                final int position = vh.getAdapterPosition();
+                if(onImageClickListener != null && position != RecyclerView.NO_POSITION) {
+                    onImageClickListener.onImageClick(position);
+                }
+            }
+        });
+        return vh;
     }
 
     /**
-     * Returns a view that displays the image at position i.
-     * The if the image isn't already loaded, it will be loaded in the background and a progress bar
-     * will be displayed.
+     * Shows the image at position i in a cell.
+     * If the image isn't already loaded, it will be loaded in the background and a placeholder
+     * will be displayed. Binding a cell whose thumbnail is cached doesn't allocate.
      */
     @Override
-    public View getView(final int i, View convertView, ViewGroup viewGroup) {
-        Log.d("PhotoAdapter", "View Requested: " + i);
-        final ViewHolder vh = convertView == null ? new ViewHolder() : (ViewHolder) convertView.getTag();
-        if (convertView == null) {
-            // if it's not recycled, inflate it from xml
-            convertView = activity.getLayoutInflater().inflate(R.layout.photo_layout, viewGroup, false);
-            // find the image and progress bar
-            vh.image = convertView.findViewById(R.id.photo);
-            vh.progressBar = convertView.findViewById(R.id.progress_bar);
-            // and set the tag to it
-            convertView.setTag(vh);
+    public void onBindViewHolder(ViewHolder vh, int i) {
+        // stop loading the image it used to show
+        if(vh.request != null) {
+            vh.request.cancel();
+            vh.request = null;
+        }
+        // and show the placeholder so we don't see old photos
+        setImage(vh, null);
+
+        if(recyclerView != null && recyclerView.getLayoutManager() instanceof GridLayoutManager) {
+            final int columns = Math.max(1, ((GridLayoutManager)recyclerView.getLayoutManager()).getSpanCount());
+            final int cellSize = recyclerView.getWidth() / columns;
+            if(cellSize > 0) {
+                setCellSize(cellSize, columns * (recyclerView.getHeight() / cellSize + 1));
+            }
+        }
+        final long id = source.getId(i);
+        vh.id = id;
+        if(id == -1L) {
+            // The image's page is still loading, the cell is rebound when it arrives
+            return;
         }
-        // set it's position
-        vh.position = i;
-        // and erase the image so we don't see old photos, also start the progress bar
-        vh.image.setImageBitmap(null);
-        vh.image.setVisibility(View.INVISIBLE);
-        vh.progressBar.setVisibility(View.VISIBLE);
-        vh.image.setRotation(0);
 
         //Try to load the image from the cache
-        Bitmap cachedImage = memoryCache.get(imageLocations[i]);
-        if(cachedImage != null) {
-            setImage(vh.image, vh.progressBar, cachedImage, imageOrientations[i]);
-            return convertView;
+        ThumbnailMemoryCache.Entry cached = engine.getThumbnail(id, tier);
+        if(cached != null) {
+            Metrics.MEMORY_CACHE_HITS.increment();
+            setImage(vh, cached);
+            return;
         }
 
-        // load the image from file
-        final String[] imageLocations = this.imageLocations;
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                // get the string for the url
-                if(vh.position != i) {
-                    return;
-                }
-                // decode the jpeg into a bitmap
-                final Bitmap bmp = getThumbnail(imageLocations[i], thumbnailSize);
-
-                // set the bitmap (might be null)
-                // must be run on the ui thread as it alters a view and uses a non-thread safe cache
-                activity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if(imageLocations == PhotoAdapter.this.imageLocations) {
-                            //Cache the image
-                            if (memoryCache.get(imageLocations[i]) == null) {
-                                memoryCache.put(imageLocations[i], bmp);
-                            }
-                            if (vh.position == i) {
-                                setImage(vh.image, vh.progressBar, bmp, imageOrientations[i]);
-                            }
-                        }
-                    }
-                });
+        // Show the nearest size we have while the right size loads
+        ThumbnailMemoryCache.Entry nearest = engine.getNearestThumbnail(id, tier);
+        if(nearest != null) {
+            Metrics.MEMORY_CACHE_NEAREST_HITS.increment();
+            setImage(vh, nearest);
+            if(nearest.tier > tier) {
+                // A larger thumbnail looks fine shrunk, don't spend time decoding a smaller one
+                return;
             }
-        });
-        return convertView;
+            // upgrade in the background, after cells that are showing nothing
+            vh.request = requestThumbnail(id, source.getPath(i), getOrientation(i), tier,
+                    DecodeScheduler.PRIORITY_PREFETCH, vh);
+            return;
+        }
+
+        // load the image from file
+        Metrics.MEMORY_CACHE_MISSES.increment();
+        vh.request = requestThumbnail(id, source.getPath(i), getOrientation(i), tier,
+                DecodeScheduler.PRIORITY_VISIBLE, vh);
     }
 
     /**
-     * Adds an image to a ImageView and stops it's progress bar.
-     * @param imageView The image view to display the image on
-     * @param progressBar The progress bar to hide
-     * @param bitmap The image to display
-     * @param orientation The orientation of the image
+     * Stops loading the thumbnail of a cell that has scrolled off screen and lets go of its bitmap,
+     * so an evicted thumbnail can go back to the pool while the cell waits to be reused.
      */
-    private static void setImage(ImageView imageView, ProgressBar progressBar, Bitmap bitmap, int orientation) {
-        imageView.setImageBitmap(bitmap);
-        imageView.setVisibility(View.VISIBLE);
-        progressBar.setVisibility(View.GONE);
-        imageView.setRotation(orientation);
+    @Override
+    public void onViewRecycled(ViewHolder vh) {
+        if(vh.request != null) {
+            vh.request.cancel();
+            vh.request = null;
+        }
+        vh.id = -1L;
+        setImage(vh, null);
     }
 
     /**
-     * Loads and returns a scales down version of an image while trying not to use large amounts of memory.
-     * @param filename The file name of an image file
-     * @param desiredSize The pixel width and height of the returned image
-     * @return An image of desiredSize size
+     * Loads a thumbnail in the background and adds it to the engine's memory cache.
+     * @param id The MediaStore _ID of the image
+     * @param filename The file name of the image
+     * @param orientation The MediaStore's orientation, used if the file doesn't have one
+     * @param tier The ThumbnailTier to load
+     * @param priority The DecodeScheduler priority to load at
+     * @param vh A ViewHolder to display the thumbnail on if it still shows the image once loaded, can be null
      */
-    private static Bitmap getThumbnail(String filename, int desiredSize) {
-        BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
-        bitmapOptions.inJustDecodeBounds = true; // obtain the size of the image, without loading it in memory
-        BitmapFactory.decodeFile(filename, bitmapOptions);
-        // find the best scaling factor for the desired dimensions
-        float scale = (float)Math.min(bitmapOptions.outWidth, bitmapOptions.outHeight) / (float)desiredSize;
-        int sampleSize = (int)Math.ceil(scale);
-        //round down to power of 2
-        sampleSize |= (sampleSize >> 1);
-        sampleSize |= (sampleSize >> 2);
-        sampleSize |= (sampleSize >> 4);
-        sampleSize |= (sampleSize >> 8);
-        sampleSize |= (sampleSize >> 16);
-        sampleSize -= (sampleSize >> 1);
-
-        bitmapOptions.inSampleSize = sampleSize; // this value must be a power of 2,
-        bitmapOptions.inJustDecodeBounds = false; // now we want to load the image
-        Bitmap thumbnail = BitmapFactory.decodeFile(filename, bitmapOptions);
-        return ThumbnailUtils.extractThumbnail(thumbnail, desiredSize, desiredSize);
+    private DecodeScheduler.Request requestThumbnail(final long id, String filename, int orientation,
+                                                     final int tier, int priority, final ViewHolder vh) {
+        ImageEngine.ThumbnailCallback callback = null;
+        if(vh != null) {
+            callback = new ImageEngine.ThumbnailCallback() {
+                @Override
+                public void onThumbnailLoaded(ThumbnailMemoryCache.Entry entry) {
+                    if (vh.id != id) {
+                        // The cell was reused for another image before this one loaded
+                        Metrics.STALE_RESULTS.increment();
+                        return;
+                    }
+                    vh.request = null;
+                    // Don't replace a thumbnail shown in the meantime with a smaller or missing one
+                    if (vh.entry == null || (entry != null && vh.entry.tier <= tier)) {
+                        setImage(vh, entry);
+                    }
+                }
+            };
+        }
+        return engine.thumbnail(id, filename)
+                .orientation(orientation)
+                .tier(tier)
+                .priority(priority)
+                .group(requests)
+                .start(callback);
     }
 
+    /**
+     * Shows a cached thumbnail in a ViewHolder's cell.
+     * @param vh The ViewHolder to display the thumbnail on
+     * @param entry The thumbnail to display, or null to show the placeholder
+     */
+    private void setImage(ViewHolder vh, ThumbnailMemoryCache.Entry entry) {
+        if(vh.entry != null) {
+            engine.unbind(vh.entry);
+            vh.entry = null;
+        }
+        if(entry == null) {
+            vh.cell.clearThumbnail();
+            return;
+        }
+        StartupMetrics.onThumbnailShown();
+        vh.cell.setThumbnail(entry.bitmap);
+        vh.entry = entry;
+        engine.bind(entry);
+    }
 }
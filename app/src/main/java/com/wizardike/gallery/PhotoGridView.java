@@ -1,18 +1,42 @@
 package com.wizardike.gallery;
 
-import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Canvas;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SimpleItemAnimator;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
-import android.widget.GridView;
+import android.view.View;
 
 /**
- * A GridView that can handle pinch to zoom
+ * A grid of square cells that can handle pinch to zoom.
+ * While pinching, the cells already drawn are scaled about the fingers to the width they will have,
+ * so nothing is laid out, rebound or loaded again. Zooming out shrinks them away from the edges
+ * where no cells are laid out, so those are filled with the placeholder colour the new cells will
+ * show while they load. The new number of columns is laid out once when the pinch ends.
+ * Only the cells on screen exist, scrolled off cells are recycled for the ones scrolling on. The
+ * recycled view pool holds a screen of cells plus a couple of rows, so it is resized whenever the
+ * number of columns changes.
  */
-public class PhotoGridView extends GridView {
+public class PhotoGridView extends RecyclerView {
+    // Rows of cells kept bound just off screen, so scrolling back a little doesn't rebind them
+    private static final int CACHED_ROWS = 2;
     private ScaleGestureDetector mScaleDetector;
+    private GridLayoutManager layoutManager;
+    // The number of columns the user has zoomed to, fractional while pinching
     private double mScaleFactor;
+    // The cell under the fingers when the pinch started and how far down it they were, so it can
+    // be kept under them when the new number of columns is laid out
+    private int focusPosition = NO_POSITION;
+    private float focusFraction;
+    private float focusY;
+    private int focusHeight;
+    // Below 1 while zooming out, how much the cells are shrunk when drawn
+    private float zoomOutScale = 1.0f;
+    private int placeholderColor;
 
     public PhotoGridView(Context context) {
         super(context);
@@ -31,16 +55,18 @@ public class PhotoGridView extends GridView {
         init(context, numColumns);
     }
 
-    @TargetApi(21)
-    public PhotoGridView(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
-        super(context, attrs, defStyleAttr, defStyleRes);
-        int numColumns = attrs.getAttributeIntValue("http://schemas.android.com/apk/res/android", "numColumns", 4);
-        init(context, numColumns);
-    }
-
     private void init(Context context, int numColumns) {
         mScaleFactor = (double)numColumns;
         mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+        placeholderColor = ContextCompat.getColor(context, R.color.thumbnailPlaceholder);
+        layoutManager = new GridLayoutManager(context, numColumns);
+        setLayoutManager(layoutManager);
+        setHasFixedSize(true);
+        // Cells are rebound when their page of images loads, cross fading them would just flicker
+        if(getItemAnimator() instanceof SimpleItemAnimator) {
+            ((SimpleItemAnimator)getItemAnimator()).setSupportsChangeAnimations(false);
+        }
+        updateRecycling();
     }
 
     @Override
@@ -49,10 +75,54 @@ public class PhotoGridView extends GridView {
         return mScaleDetector.isInProgress() || super.onTouchEvent(ev);
     }
 
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        updateRecycling();
+    }
+
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        if(zoomOutScale >= 1.0f) {
+            super.dispatchDraw(canvas);
+            return;
+        }
+        canvas.drawColor(placeholderColor);
+        final int saveCount = canvas.save();
+        canvas.scale(zoomOutScale, zoomOutScale, getPivotX(), getPivotY());
+        super.dispatchDraw(canvas);
+        canvas.restoreToCount(saveCount);
+    }
+
+    private void setZoomOutScale(float scale) {
+        if(scale != zoomOutScale) {
+            zoomOutScale = scale;
+            invalidate();
+        }
+    }
+
     /**
      * Handles scale events
      */
     private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            stopScroll();
+            mScaleFactor = getNumColumns();
+            focusY = detector.getFocusY();
+            View child = findChildViewUnder(detector.getFocusX(), focusY);
+            focusPosition = child == null ? NO_POSITION : getChildAdapterPosition(child);
+            if(focusPosition != NO_POSITION) {
+                focusHeight = Math.max(1, child.getHeight());
+                focusFraction = (focusY - child.getTop()) / focusHeight;
+            }
+            setPivotX(detector.getFocusX());
+            setPivotY(focusY);
+            // Zooming in, the cells are drawn into the layer once and the layer is scaled each frame
+            setLayerType(LAYER_TYPE_HARDWARE, null);
+            return true;
+        }
+
         @Override
         public boolean onScale(ScaleGestureDetector detector) {
             double amount = detector.getScaleFactor();
@@ -60,24 +130,97 @@ public class PhotoGridView extends GridView {
             // Don't let the object get too small or too large.
             mScaleFactor = Math.max(1.0, Math.min(mScaleFactor, 8.0f));
 
-            int newNumColumns = (int)mScaleFactor;
-            if(newNumColumns != getNumColumns()) {
-                int position = getFirstVisiblePosition();
-                setNumColumns(newNumColumns);
-                setSelection(position);
+            final int numColumns = getNumColumns();
+            if(mScaleFactor <= numColumns) {
+                final float scale = (float)(numColumns / mScaleFactor);
+                setScaleX(scale);
+                setScaleY(scale);
+                setZoomOutScale(1.0f);
+            } else {
+                setScaleX(1.0f);
+                setScaleY(1.0f);
+                setZoomOutScale((float)(numColumns / mScaleFactor));
             }
-            invalidate();
             return true;
         }
+
+        @Override
+        public void onScaleEnd(ScaleGestureDetector detector) {
+            setScaleX(1.0f);
+            setScaleY(1.0f);
+            setZoomOutScale(1.0f);
+            setLayerType(LAYER_TYPE_NONE, null);
+            // Settle on the number of columns closest to what was shown
+            mScaleFactor = Math.max(1, Math.min(Math.round(mScaleFactor), 8));
+            final int oldNumColumns = getNumColumns();
+            final int newNumColumns = (int)mScaleFactor;
+            if(newNumColumns == oldNumColumns) {
+                return;
+            }
+            final int position = getFirstVisiblePosition();
+            setNumColumns(newNumColumns);
+            if(focusPosition != NO_POSITION) {
+                final float newHeight = (float)focusHeight * oldNumColumns / newNumColumns;
+                layoutManager.scrollToPositionWithOffset(focusPosition, Math.round(focusY - focusFraction * newHeight));
+            } else {
+                scrollToPosition(Math.max(position, 0));
+            }
+        }
     }
 
     public void setScale(double scale) {
         mScaleFactor = scale;
-        super.setNumColumns((int)scale);
-        invalidate();
+        setNumColumns((int)scale);
     }
 
     public double getScale() {
         return mScaleFactor;
     }
+
+    public int getNumColumns() {
+        return layoutManager.getSpanCount();
+    }
+
+    /**
+     * @return The position of the first cell on screen or NO_POSITION if there are none
+     */
+    public int getFirstVisiblePosition() {
+        return layoutManager.findFirstVisibleItemPosition();
+    }
+
+    /**
+     * @return The position of the last cell on screen or NO_POSITION if there are none
+     */
+    public int getLastVisiblePosition() {
+        return layoutManager.findLastVisibleItemPosition();
+    }
+
+    /**
+     * Sets how many columns each cell spans, for cells like headers that fill a row.
+     */
+    public void setSpanSizeLookup(GridLayoutManager.SpanSizeLookup lookup) {
+        layoutManager.setSpanSizeLookup(lookup);
+    }
+
+    private void setNumColumns(int numColumns) {
+        numColumns = Math.max(1, numColumns);
+        if(numColumns != layoutManager.getSpanCount()) {
+            layoutManager.setSpanCount(numColumns);
+            updateRecycling();
+        }
+    }
+
+    /**
+     * Sizes the recycled view pool and the cache of bound cells for the number of cells that fit
+     * on the screen, so scrolling a row on always finds a cell to reuse.
+     */
+    private void updateRecycling() {
+        final int columns = Math.max(1, layoutManager.getSpanCount());
+        final int cellSize = Math.max(1, getWidth() / columns);
+        // Before layout there's no size, assume square
+        final int rows = getHeight() == 0 ? columns : getHeight() / cellSize + 1;
+        // Thumbnail cells are view type 0 in every adapter the grid shows
+        getRecycledViewPool().setMaxRecycledViews(0, columns * (rows + CACHED_ROWS));
+        setItemViewCacheSize(columns * CACHED_ROWS);
+    }
 }
@@ -0,0 +1,56 @@
+package com.wizardike.gallery;
+
+import java.util.ArrayList;
+
+/**
+ * The requests made for one screen, so they can all be cancelled when the screen is destroyed.
+ * ImageEngine removes requests once their results are delivered, requests cancelled on their own
+ * are removed the next time the group grows.
+ * Must only be used on the ui thread.
+ */
+final class RequestGroup {
+    private static final int MIN_PRUNE_SIZE = 64;
+
+    private final ArrayList<DecodeScheduler.Request> requests = new ArrayList<>();
+    // The size the group can reach before cancelled requests are removed
+    private int pruneSize = MIN_PRUNE_SIZE;
+    private boolean cancelled = false;
+
+    /**
+     * Adds a request, cancelling it straight away if the group has already been cancelled.
+     */
+    void add(DecodeScheduler.Request request) {
+        if(cancelled) {
+            request.cancel();
+            return;
+        }
+        if(requests.size() >= pruneSize) {
+            for(int i = requests.size() - 1; i >= 0; --i) {
+                if(requests.get(i).isCancelled()) {
+                    requests.remove(i);
+                }
+            }
+            pruneSize = Math.max(MIN_PRUNE_SIZE, requests.size() * 2);
+        }
+        requests.add(request);
+    }
+
+    void remove(DecodeScheduler.Request request) {
+        requests.remove(request);
+    }
+
+    /**
+     * Cancels every request in the group and any added later.
+     */
+    void cancelAll() {
+        cancelled = true;
+        for(DecodeScheduler.Request request : requests) {
+            request.cancel();
+        }
+        requests.clear();
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+}
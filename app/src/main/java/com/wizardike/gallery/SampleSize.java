@@ -0,0 +1,46 @@
+package com.wizardike.gallery;
+
+/**
+ * Works out the power of two sample sizes images are decoded at.
+ */
+final class SampleSize {
+
+    private SampleSize() {}
+
+    /**
+     * Gets the largest power of two sample size that still leaves the shorter side of an image at
+     * least as long as a square thumbnail.
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @param desiredSize The pixel width and height of the thumbnail
+     */
+    static int forThumbnail(int width, int height, int desiredSize) {
+        // find the best scaling factor for the desired dimensions
+        float scale = (float)Math.min(width, height) / (float)desiredSize;
+        int sampleSize = (int)Math.ceil(scale);
+        //round down to power of 2
+        sampleSize |= (sampleSize >> 1);
+        sampleSize |= (sampleSize >> 2);
+        sampleSize |= (sampleSize >> 4);
+        sampleSize |= (sampleSize >> 8);
+        sampleSize |= (sampleSize >> 16);
+        sampleSize -= (sampleSize >> 1);
+        if(sampleSize < 1) {
+            sampleSize = 1;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Gets the largest power of two sample size that still shows at least one decoded pixel per
+     * screen pixel when the image is drawn at scale.
+     * @param scale Screen pixels per image pixel
+     */
+    static int forScale(float scale) {
+        int sampleSize = 1;
+        while(sampleSize * 2 * scale <= 1.0f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,69 @@
+package com.wizardike.gallery;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures how long the app takes to show the grid and its first thumbnail after the main
+ * activity is created, and logs the results so startup regressions are noticed.
+ * Only used on the ui thread.
+ */
+final class StartupMetrics {
+    private static final String TAG = "StartupMetrics";
+
+    private static long startTime = -1;
+    private static boolean fromSnapshot;
+    private static long gridShownTime = -1;
+    private static long firstThumbnailTime = -1;
+
+    private StartupMetrics() {}
+
+    /**
+     * Starts timing a startup. Called when the main activity is created.
+     */
+    static void onActivityCreated() {
+        startTime = SystemClock.uptimeMillis();
+        gridShownTime = -1;
+        firstThumbnailTime = -1;
+    }
+
+    /**
+     * Called when the grid is first given images to show.
+     * @param fromSnapshot True if the images came from the index saved last time the app ran
+     */
+    static void onGridShown(boolean fromSnapshot) {
+        if(startTime != -1 && gridShownTime == -1) {
+            gridShownTime = SystemClock.uptimeMillis() - startTime;
+            StartupMetrics.fromSnapshot = fromSnapshot;
+            Log.i(TAG, "Grid shown after " + gridShownTime + "ms" + (fromSnapshot ? " from snapshot" : ""));
+        }
+    }
+
+    /**
+     * Called whenever a thumbnail is displayed, only the first one after startup is recorded.
+     */
+    static void onThumbnailShown() {
+        if(startTime != -1 && firstThumbnailTime == -1) {
+            firstThumbnailTime = SystemClock.uptimeMillis() - startTime;
+            Log.i(TAG, "First thumbnail shown after " + firstThumbnailTime + "ms");
+        }
+    }
+
+    /**
+     * @return The milliseconds from activity creation to the grid being shown, or -1 if it hasn't been yet
+     */
+    static long getGridShownTime() {
+        return gridShownTime;
+    }
+
+    /**
+     * @return The milliseconds from activity creation to the first thumbnail, or -1 if there hasn't been one yet
+     */
+    static long getFirstThumbnailTime() {
+        return firstThumbnailTime;
+    }
+
+    static boolean wasFromSnapshot() {
+        return fromSnapshot;
+    }
+}
@@ -0,0 +1,116 @@
+package com.wizardike.gallery;
+
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+/**
+ * Shows thumbnails in the cells of a grid for adapters other than the main grid's, like albums'
+ * covers and similar photos. Each cell shows the tier that suits the grid's cell size, with the
+ * nearest cached tier shown while it loads, and keeps the thumbnail it shows bound in the engine.
+ * Only used on the ui thread.
+ */
+final class ThumbnailCellBinder {
+    private final ImageEngine engine;
+    // Cancelled when the activity finishes
+    private final RequestGroup requests;
+
+    /**
+     * The thumbnail a cell shows and the request loading it.
+     */
+    static final class Cell {
+        final ThumbnailCellView view;
+        DecodeScheduler.Request request;
+        // The cached thumbnail the cell shows, null while it shows the placeholder
+        ThumbnailMemoryCache.Entry entry;
+        // The _ID of the image the cell is for, -1 if none
+        long id = -1L;
+
+        Cell(ThumbnailCellView view) {
+            this.view = view;
+        }
+    }
+
+    ThumbnailCellBinder(ImageEngine engine, RequestGroup requests) {
+        this.engine = engine;
+        this.requests = requests;
+    }
+
+    /**
+     * @return The tier that suits the size of the grid's cells, or the default before it is laid out
+     */
+    static int getTier(RecyclerView recyclerView) {
+        if(recyclerView != null && recyclerView.getLayoutManager() instanceof GridLayoutManager) {
+            final int columns = Math.max(1, ((GridLayoutManager)recyclerView.getLayoutManager()).getSpanCount());
+            final int cellSize = recyclerView.getWidth() / columns;
+            if(cellSize > 0) {
+                return ThumbnailTier.forCellSize(cellSize);
+            }
+        }
+        return ThumbnailTier.DEFAULT;
+    }
+
+    /**
+     * Shows an image's thumbnail in a cell, from the memory cache if it's there and otherwise
+     * loading it. Whatever the cell showed before is released.
+     */
+    void bind(final Cell cell, final long id, String path, int orientation, int tier) {
+        clear(cell);
+        cell.id = id;
+        ThumbnailMemoryCache.Entry cached = engine.getThumbnail(id, tier);
+        if(cached == null) {
+            cached = engine.getNearestThumbnail(id, tier);
+        }
+        if(cached != null) {
+            setThumbnail(cell, cached);
+            if(cached.tier >= tier) {
+                return;
+            }
+        }
+        cell.request = engine.thumbnail(id, path)
+                .orientation(orientation)
+                .tier(tier)
+                .group(requests)
+                .start(new ImageEngine.ThumbnailCallback() {
+                    @Override
+                    public void onThumbnailLoaded(ThumbnailMemoryCache.Entry entry) {
+                        if(cell.id != id) {
+                            // The cell was reused for another image before this one loaded
+                            return;
+                        }
+                        cell.request = null;
+                        if(entry != null) {
+                            setThumbnail(cell, entry);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Cancels the cell's load and shows the placeholder, for cells without an image or being recycled.
+     */
+    void clear(Cell cell) {
+        if(cell.request != null) {
+            cell.request.cancel();
+            cell.request = null;
+        }
+        cell.id = -1L;
+        setThumbnail(cell, null);
+    }
+
+    /**
+     * Shows a cached thumbnail in a cell, or the placeholder if entry is null.
+     */
+    private void setThumbnail(Cell cell, ThumbnailMemoryCache.Entry entry) {
+        if(cell.entry != null) {
+            engine.unbind(cell.entry);
+            cell.entry = null;
+        }
+        if(entry == null) {
+            cell.view.clearThumbnail();
+            return;
+        }
+        cell.view.setThumbnail(entry.bitmap);
+        cell.entry = entry;
+        engine.bind(entry);
+    }
+}
@@ -0,0 +1,87 @@
+package com.wizardike.gallery;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.drawable.Drawable;
+import android.view.View;
+
+/**
+ * A square grid cell that draws a thumbnail scaled straight onto the canvas, or a placeholder
+ * while the thumbnail loads. Thumbnails are rotated the right way up when they are decoded, so
+ * drawing one is only a scale. The placeholder is shared by every cell, and binding only updates
+ * a matrix, so it doesn't allocate.
+ */
+class ThumbnailCellView extends View {
+    private final Drawable placeholder;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix drawMatrix = new Matrix();
+    private Bitmap bitmap;
+
+    /**
+     * @param placeholder Drawn while there is no thumbnail, can be shared with other cells
+     */
+    ThumbnailCellView(Context context, Drawable placeholder) {
+        super(context);
+        this.placeholder = placeholder;
+        setContentDescription(context.getString(R.string.image));
+    }
+
+    /**
+     * Shows a thumbnail.
+     */
+    void setThumbnail(Bitmap bitmap) {
+        this.bitmap = bitmap;
+        updateMatrix();
+        invalidate();
+    }
+
+    /**
+     * Shows the placeholder instead of a thumbnail.
+     */
+    void clearThumbnail() {
+        if(bitmap != null) {
+            bitmap = null;
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final int size = getDefaultSize(0, widthMeasureSpec);
+        setMeasuredDimension(size, size);
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        updateMatrix();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if(bitmap == null) {
+            // Shared, so its bounds are set for whichever cell draws it
+            placeholder.setBounds(0, 0, getWidth(), getHeight());
+            placeholder.draw(canvas);
+        } else {
+            canvas.drawBitmap(bitmap, drawMatrix, paint);
+        }
+    }
+
+    private void updateMatrix() {
+        final int width = getWidth();
+        final int height = getHeight();
+        if(bitmap == null || width == 0 || height == 0) {
+            return;
+        }
+        final int bitmapWidth = bitmap.getWidth();
+        final int bitmapHeight = bitmap.getHeight();
+        final float scale = Math.max((float)width / bitmapWidth, (float)height / bitmapHeight);
+        // Scale to cover the cell and center it
+        drawMatrix.setScale(scale, scale);
+        drawMatrix.postTranslate((width - bitmapWidth * scale) / 2f, (height - bitmapHeight * scale) / 2f);
+    }
+}
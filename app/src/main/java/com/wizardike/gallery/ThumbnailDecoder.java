@@ -0,0 +1,220 @@
+package com.wizardike.gallery;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.os.Build;
+
+/**
+ * Decodes images into square thumbnails, reusing bitmaps from a BitmapPool. Used by the grid and
+ * by the background warm-up of the disk cache, so both produce the same thumbnails.
+ * All methods are thread safe, each thread decodes with its own reusable objects.
+ */
+final class ThumbnailDecoder {
+    // How different the shape of an EXIF thumbnail can be from the image's and still be used
+    private static final float MAX_EXIF_THUMBNAIL_ASPECT_ERROR = 0.02f;
+    private static final ThreadLocal<DecodeState> decodeState = new ThreadLocal<DecodeState>() {
+        @Override
+        protected DecodeState initialValue() {
+            return new DecodeState();
+        }
+    };
+
+    private ThumbnailDecoder() {}
+
+    /**
+     * Reusable objects for decoding and cropping thumbnails, one per decoding thread.
+     */
+    private static class DecodeState {
+        final ExifReader exif = new ExifReader();
+        final Canvas canvas = new Canvas();
+        // Dithering hides banding when drawing into RGB_565 and does nothing for ARGB_8888
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        final Matrix matrix = new Matrix();
+    }
+
+    /**
+     * Copies a thumbnail into graphics memory and returns the original to pool.
+     * @return The copy, or thumbnail if it couldn't be copied
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    static Bitmap toHardwareBitmap(Bitmap thumbnail, BitmapPool pool) {
+        Bitmap copy = thumbnail.copy(Bitmap.Config.HARDWARE, false);
+        if(copy == null) {
+            return thumbnail;
+        }
+        pool.put(thumbnail);
+        return copy;
+    }
+
+    /**
+     * Loads a thumbnail from the disk cache, reusing a pooled bitmap if possible.
+     * @param config The config to decode the thumbnail in
+     * @return The thumbnail or null if it isn't in the cache
+     */
+    static Bitmap getCachedThumbnail(DiskThumbnailCache diskCache, String key, int size,
+                                             Bitmap.Config config, BitmapPool pool) {
+        if(!diskCache.contains(key)) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inPreferredConfig = config;
+        final Bitmap pooled = pool.getForDecode(size, size, config);
+        options.inBitmap = pooled;
+        Bitmap bitmap;
+        try {
+            bitmap = diskCache.get(key, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap couldn't be reused for this image
+            options.inBitmap = null;
+            bitmap = diskCache.get(key, options);
+        }
+        if(bitmap != pooled) {
+            // The decode failed or didn't use the pooled bitmap, it can still be used for another
+            pool.put(pooled);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Loads and returns a scales down version of an image while trying not to use large amounts of memory.
+     * The file's EXIF header is read first. If it has an embedded thumbnail at least as large as
+     * desiredSize that is used, otherwise the image is decoded sampled down. The header also gives
+     * the image's size and orientation, see DecodeState.exif. The thumbnail is rotated the right
+     * way up so it can be drawn without any rotation.
+     * Both the sampled image and the returned thumbnail reuse bitmaps from pool when possible.
+     * @param filename The file name of an image file
+     * @param desiredSize The pixel width and height of the returned image
+     * @param storedOrientation The MediaStore's orientation, used if the file doesn't have one
+     * @param config The config to decode the image and make the thumbnail in
+     * @param pool The pool to take bitmaps from and return the sampled image to
+     * @return An image of desiredSize size or null if the image can't be decoded
+     */
+    static Bitmap getThumbnail(String filename, int desiredSize, int storedOrientation,
+                                       Bitmap.Config config, BitmapPool pool) {
+        final DecodeState state = decodeState.get();
+        BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+        bitmapOptions.inPreferredConfig = config;
+        final int width;
+        final int height;
+        final int orientation;
+        if(state.exif.read(filename)) {
+            width = state.exif.getWidth();
+            height = state.exif.getHeight();
+            orientation = state.exif.getOrientation() != -1 ? state.exif.getOrientation() : storedOrientation;
+            if(state.exif.hasThumbnail()) {
+                Bitmap thumbnail = getExifThumbnail(state, width, height, desiredSize, orientation, config, pool);
+                if(thumbnail != null) {
+                    Metrics.EXIF_THUMBNAIL_DECODES.increment();
+                    return thumbnail;
+                }
+            }
+        } else {
+            bitmapOptions.inJustDecodeBounds = true; // obtain the size of the image, without loading it in memory
+            BitmapFactory.decodeFile(filename, bitmapOptions);
+            width = bitmapOptions.outWidth;
+            height = bitmapOptions.outHeight;
+            orientation = storedOrientation;
+        }
+        if(width <= 0 || height <= 0) {
+            return null;
+        }
+        Metrics.SAMPLED_DECODES.increment();
+        final int sampleSize = SampleSize.forThumbnail(width, height, desiredSize);
+        bitmapOptions.inSampleSize = sampleSize; // this value must be a power of 2,
+        bitmapOptions.inJustDecodeBounds = false; // now we want to load the image
+        bitmapOptions.inMutable = true;
+        // Before KitKat a bitmap can only be reused when the image isn't sampled
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT || sampleSize == 1) {
+            final int sampledWidth = (width + sampleSize - 1) / sampleSize;
+            final int sampledHeight = (height + sampleSize - 1) / sampleSize;
+            bitmapOptions.inBitmap = pool.getForDecode(sampledWidth, sampledHeight, config);
+        }
+        Bitmap sampled;
+        try {
+            sampled = BitmapFactory.decodeFile(filename, bitmapOptions);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap couldn't be reused for this image
+            pool.put(bitmapOptions.inBitmap);
+            bitmapOptions.inBitmap = null;
+            sampled = BitmapFactory.decodeFile(filename, bitmapOptions);
+        }
+        if(sampled == null) {
+            pool.put(bitmapOptions.inBitmap);
+            return null;
+        }
+        return cropToThumbnail(state, sampled, desiredSize, orientation, config, pool);
+    }
+
+    /**
+     * Decodes the thumbnail embedded in the EXIF header last read by state.exif if it is big
+     * enough and has the same shape as the image. Some cameras add black bars to make thumbnails
+     * a fixed shape, and cropping those would show the bars.
+     * @return The thumbnail or null if the embedded thumbnail can't be used
+     */
+    private static Bitmap getExifThumbnail(DecodeState state, int width, int height, int desiredSize,
+                                           int orientation, Bitmap.Config config, BitmapPool pool) {
+        final ExifReader exif = state.exif;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(exif.getThumbnailData(), exif.getThumbnailOffset(),
+                exif.getThumbnailLength(), options);
+        final int thumbnailWidth = options.outWidth;
+        final int thumbnailHeight = options.outHeight;
+        if(Math.min(thumbnailWidth, thumbnailHeight) < desiredSize) {
+            return null;
+        }
+        final float aspectRatio = (float)width / height;
+        final float thumbnailAspectRatio = (float)thumbnailWidth / thumbnailHeight;
+        if(Math.abs(thumbnailAspectRatio - aspectRatio) > MAX_EXIF_THUMBNAIL_ASPECT_ERROR * aspectRatio) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inPreferredConfig = config;
+        options.inBitmap = pool.getForDecode(thumbnailWidth, thumbnailHeight, config);
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeByteArray(exif.getThumbnailData(), exif.getThumbnailOffset(),
+                    exif.getThumbnailLength(), options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap couldn't be reused for this image
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeByteArray(exif.getThumbnailData(), exif.getThumbnailOffset(),
+                    exif.getThumbnailLength(), options);
+        }
+        if(decoded == null) {
+            pool.put(options.inBitmap);
+            return null;
+        }
+        return cropToThumbnail(state, decoded, desiredSize, orientation, config, pool);
+    }
+
+    /**
+     * Center crops an image into a square thumbnail in config, rotated clockwise by orientation
+     * degrees, and returns the image to pool. The crop is square so rotating it about its center
+     * keeps it in the thumbnail.
+     */
+    private static Bitmap cropToThumbnail(DecodeState state, Bitmap image, int desiredSize, int orientation,
+                                          Bitmap.Config config, BitmapPool pool) {
+        Bitmap thumbnail = pool.getOrCreate(desiredSize, desiredSize, config);
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int cropSize = Math.min(width, height);
+        final float scale = (float)desiredSize / cropSize;
+        state.matrix.setTranslate(-((width - cropSize) / 2), -((height - cropSize) / 2));
+        state.matrix.postScale(scale, scale);
+        state.matrix.postRotate(orientation, desiredSize / 2f, desiredSize / 2f);
+        state.canvas.setBitmap(thumbnail);
+        state.canvas.drawBitmap(image, state.matrix, state.paint);
+        state.canvas.setBitmap(null);
+        pool.put(image);
+        return thumbnail;
+    }
+}
@@ -0,0 +1,62 @@
+package com.wizardike.gallery;
+
+import android.app.ActivityManager;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * The bitmap configs thumbnails are decoded and cached in. Thumbnails are JPEGs without alpha, so
+ * ARGB_8888 wastes a quarter of every pixel and RGB_565 holds twice as many in the same memory.
+ * The banding RGB_565 can cause isn't noticeable in cells as small as the lower tiers.
+ * From Oreo larger thumbnails can be cached as HARDWARE bitmaps, which live in graphics memory
+ * instead of the Java heap and don't need uploading every time they are drawn.
+ */
+final class ThumbnailFormat {
+    // Every thumbnail in ARGB_8888 on the heap, never the default but can be asked for when launching the grid
+    static final int MODE_QUALITY = 0;
+    // RGB_565 for tiers only shown in dense grids, HARDWARE for the rest where available
+    static final int MODE_BALANCED = 1;
+    // RGB_565 for every tier, for low memory devices
+    static final int MODE_COMPACT = 2;
+
+    // The largest tier only shown in grids dense enough to hide RGB_565 banding
+    private static final int MAX_DENSE_TIER = 1;
+
+    private ThumbnailFormat() {}
+
+    /**
+     * @return MODE_COMPACT on low memory devices, MODE_BALANCED otherwise
+     */
+    static int getDefaultMode(ActivityManager activityManager) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && activityManager.isLowRamDevice()) {
+            return MODE_COMPACT;
+        }
+        return MODE_BALANCED;
+    }
+
+    /**
+     * @return The config to decode and crop thumbnails of tier in, always one that can be drawn into
+     */
+    static Bitmap.Config getDecodeConfig(int mode, int tier) {
+        if(mode == MODE_COMPACT || (mode == MODE_BALANCED && tier <= MAX_DENSE_TIER)) {
+            return Bitmap.Config.RGB_565;
+        }
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @return True if thumbnails of tier should be copied to a HARDWARE bitmap before being cached
+     */
+    static boolean useHardwareBitmaps(int mode, int tier) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mode == MODE_BALANCED
+                && getDecodeConfig(mode, tier) == Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @return The number of bytes a cached thumbnail of tier takes
+     */
+    static long getThumbnailBytes(int mode, int tier) {
+        final long size = ThumbnailTier.SIZES[tier];
+        return size * size * BitmapPool.bytesPerPixel(getDecodeConfig(mode, tier));
+    }
+}
@@ -0,0 +1,220 @@
+package com.wizardike.gallery;
+
+import android.graphics.Bitmap;
+import android.util.LongSparseArray;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A least recently used cache of thumbnails that can hold each image at several ThumbnailTiers.
+ * Images are keyed by their MediaStore _ID so looking one up doesn't allocate, and when the wanted
+ * tier isn't cached the nearest cached tier can be shown instead.
+ * Must only be used on the ui thread.
+ */
+class ThumbnailMemoryCache {
+
+    /**
+     * Called when an entry leaves the cache so its bitmap's memory can be reused.
+     */
+    interface RemovalListener {
+        void onRemoved(Entry entry);
+    }
+
+    /**
+     * A cached thumbnail.
+     */
+    static final class Entry {
+        final long id;
+        final int tier;
+        final Bitmap bitmap;
+        final int size;
+        // How many cells show the bitmap, kept by the user of the cache
+        int displayCount = 0;
+        // Set by the user of the cache when the entry is removed while displayed
+        boolean evicted = false;
+
+        private Entry(long id, int tier, Bitmap bitmap) {
+            this.id = id;
+            this.tier = tier;
+            this.bitmap = bitmap;
+            this.size = BitmapPool.getAllocationByteCount(bitmap);
+        }
+    }
+
+    private final LongSparseArray<Entry[]> entriesById = new LongSparseArray<>();
+    // Access ordered so iteration starts at the least recently used thumbnail
+    private final LinkedHashMap<Entry, Boolean> recency = new LinkedHashMap<>(0, 0.75f, true);
+    private final RemovalListener removalListener;
+    private long maxSize;
+    private long size = 0;
+
+    /**
+     * @param maxSize The maximum number of bytes of bitmaps to hold
+     * @param removalListener Called when bitmaps leave the cache
+     */
+    ThumbnailMemoryCache(long maxSize, RemovalListener removalListener) {
+        this.maxSize = maxSize;
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * @return The thumbnail of the image with the given id at tier or null if it isn't cached
+     */
+    Entry get(long id, int tier) {
+        Entry[] entries = entriesById.get(id);
+        if(entries == null || entries[tier] == null) {
+            return null;
+        }
+        recency.get(entries[tier]);
+        return entries[tier];
+    }
+
+    /**
+     * Finds the cached thumbnail of the image with the given id closest to tier, preferring larger
+     * tiers as they look better when shrunk than smaller ones do when stretched.
+     * @return The entry or null if no tier of the image is cached
+     */
+    Entry getNearest(long id, int tier) {
+        Entry[] entries = entriesById.get(id);
+        if(entries == null) {
+            return null;
+        }
+        for(int distance = 0; distance != ThumbnailTier.COUNT; ++distance) {
+            final int larger = tier + distance;
+            if(larger < ThumbnailTier.COUNT && entries[larger] != null) {
+                recency.get(entries[larger]);
+                return entries[larger];
+            }
+            final int smaller = tier - distance;
+            if(smaller >= 0 && entries[smaller] != null) {
+                recency.get(entries[smaller]);
+                return entries[smaller];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a thumbnail, replacing any thumbnail of the same image and tier.
+     */
+    void put(long id, int tier, Bitmap bitmap) {
+        Entry[] entries = entriesById.get(id);
+        if(entries == null) {
+            entries = new Entry[ThumbnailTier.COUNT];
+            entriesById.put(id, entries);
+        }
+        Entry old = entries[tier];
+        if(old != null) {
+            if(old.bitmap == bitmap) {
+                recency.get(old);
+                return;
+            }
+            recency.remove(old);
+            size -= old.size;
+            removalListener.onRemoved(old);
+        }
+        Entry entry = new Entry(id, tier, bitmap);
+        entries[tier] = entry;
+        recency.put(entry, Boolean.TRUE);
+        size += entry.size;
+        Iterator<Entry> iterator = recency.keySet().iterator();
+        while(size > maxSize && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            forget(eldest);
+            Metrics.EVICTIONS_FOR_SPACE.increment();
+        }
+    }
+
+    /**
+     * Removes every tier of the image with the given id.
+     */
+    void remove(long id) {
+        Entry[] entries = entriesById.get(id);
+        if(entries == null) {
+            return;
+        }
+        for(Entry entry : entries) {
+            if(entry != null) {
+                removeEntry(entry);
+            }
+        }
+    }
+
+    void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * Removes least recently used thumbnails until the cache holds at most maxSize bytes.
+     */
+    void trimToSize(long maxSize) {
+        Iterator<Entry> iterator = recency.keySet().iterator();
+        while(size > maxSize && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            forget(eldest);
+        }
+    }
+
+    /**
+     * Removes least recently used thumbnails with a tier between minTier and maxTier inclusive that
+     * aren't displayed, until the cache holds at most targetSize bytes. Calling this for different
+     * ranges of tiers in turn sheds the least useful sizes first.
+     * @return The number of thumbnails removed
+     */
+    int shed(long targetSize, int minTier, int maxTier) {
+        int removed = 0;
+        Iterator<Entry> iterator = recency.keySet().iterator();
+        while(size > targetSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if(entry.tier >= minTier && entry.tier <= maxTier && entry.displayCount == 0) {
+                iterator.remove();
+                forget(entry);
+                ++removed;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Changes the maximum number of bytes of bitmaps to hold, removing least recently used
+     * thumbnails if the cache holds more than that.
+     */
+    void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * @return The number of bytes of bitmaps held
+     */
+    long size() {
+        return size;
+    }
+
+    private void removeEntry(Entry entry) {
+        recency.remove(entry);
+        forget(entry);
+    }
+
+    private void forget(Entry entry) {
+        size -= entry.size;
+        Entry[] entries = entriesById.get(entry.id);
+        if(entries != null && entries[entry.tier] == entry) {
+            entries[entry.tier] = null;
+            boolean empty = true;
+            for(Entry other : entries) {
+                if(other != null) {
+                    empty = false;
+                    break;
+                }
+            }
+            if(empty) {
+                entriesById.remove(entry.id);
+            }
+        }
+        removalListener.onRemoved(entry);
+    }
+}
@@ -0,0 +1,106 @@
+package com.wizardike.gallery;
+
+import android.os.SystemClock;
+import android.support.v7.widget.RecyclerView;
+
+/**
+ * Loads thumbnails for the rows just past the edge of the screen in the direction the grid is
+ * scrolling, so they are usually cached before their cells are shown.
+ * The number of rows loaded ahead grows with scroll speed and decode time, and nothing is loaded
+ * ahead during fast flings as the rows would be scrolled past before they were shown.
+ */
+class ThumbnailPrefetcher extends RecyclerView.OnScrollListener {
+    private static final int MIN_LOOKAHEAD_ROWS = 1;
+    private static final int MAX_LOOKAHEAD_ROWS = 8;
+    // Rows per second above which a fling is too fast for loading ahead to help
+    private static final float FLING_VELOCITY_THRESHOLD = 25.0f;
+    // How much each new velocity sample counts towards the smoothed velocity
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+
+    private final PhotoAdapter adapter;
+    private final int workerCount;
+    private int scrollState = RecyclerView.SCROLL_STATE_IDLE;
+    private int lastFirstRow = -1;
+    private long lastRowChangeTime;
+    // Smoothed rows per second, positive when scrolling down
+    private float velocity = 0.0f;
+    private int direction = 1;
+
+    /**
+     * @param adapter The adapter to load thumbnails with
+     * @param workerCount The number of threads thumbnails are decoded on
+     */
+    ThumbnailPrefetcher(PhotoAdapter adapter, int workerCount) {
+        this.adapter = adapter;
+        this.workerCount = Math.max(1, workerCount);
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView view, int scrollState) {
+        this.scrollState = scrollState;
+        if(scrollState == RecyclerView.SCROLL_STATE_IDLE) {
+            velocity = 0.0f;
+            prefetch((PhotoGridView)view);
+        }
+    }
+
+    @Override
+    public void onScrolled(RecyclerView view, int dx, int dy) {
+        final PhotoGridView grid = (PhotoGridView)view;
+        final int firstVisibleItem = grid.getFirstVisiblePosition();
+        if(firstVisibleItem == RecyclerView.NO_POSITION) {
+            return;
+        }
+        final int columns = Math.max(1, grid.getNumColumns());
+        final int firstRow = firstVisibleItem / columns;
+        final long now = SystemClock.uptimeMillis();
+        if(lastFirstRow == -1) {
+            lastFirstRow = firstRow;
+            lastRowChangeTime = now;
+        } else if(firstRow != lastFirstRow) {
+            final long elapsed = Math.max(1, now - lastRowChangeTime);
+            final float sample = (firstRow - lastFirstRow) * 1000.0f / elapsed;
+            velocity += (sample - velocity) * VELOCITY_SMOOTHING;
+            direction = firstRow > lastFirstRow ? 1 : -1;
+            lastFirstRow = firstRow;
+            lastRowChangeTime = now;
+        } else {
+            // Only update when the visible rows change, nothing new needs loading otherwise
+            return;
+        }
+        prefetch(grid);
+    }
+
+    private void prefetch(PhotoGridView grid) {
+        if(!adapter.isReady()) {
+            return;
+        }
+        if(scrollState == RecyclerView.SCROLL_STATE_SETTLING && Math.abs(velocity) > FLING_VELOCITY_THRESHOLD) {
+            adapter.cancelPrefetch();
+            return;
+        }
+        final int firstVisibleItem = grid.getFirstVisiblePosition();
+        final int lastVisibleItem = grid.getLastVisiblePosition();
+        if(firstVisibleItem == RecyclerView.NO_POSITION) {
+            return;
+        }
+        final int columns = Math.max(1, grid.getNumColumns());
+        final int rows = getLookaheadRows(columns);
+        if(direction > 0) {
+            adapter.prefetch(lastVisibleItem + 1, rows * columns);
+        } else {
+            final int first = Math.max(0, firstVisibleItem - rows * columns);
+            adapter.prefetch(first, firstVisibleItem - first);
+        }
+    }
+
+    /**
+     * Works out how many rows need loading ahead for them to be ready by the time they are
+     * scrolled onto the screen: the rows that will appear while a row is being decoded.
+     */
+    private int getLookaheadRows(int columns) {
+        final double decodeSecondsPerRow = adapter.getAverageLoadNanos() / 1e9 * columns / workerCount;
+        final int rows = MIN_LOOKAHEAD_ROWS + (int)Math.ceil(Math.abs(velocity) * decodeSecondsPerRow);
+        return Math.min(MAX_LOOKAHEAD_ROWS, rows);
+    }
+}
@@ -0,0 +1,31 @@
+package com.wizardike.gallery;
+
+/**
+ * The sizes thumbnails are decoded at. Each cell shows the smallest tier that is close to its
+ * size, so zooming the grid only needs a new decode when it crosses into a new tier.
+ */
+final class ThumbnailTier {
+    static final int[] SIZES = {64, 128, 256, 512};
+    static final int COUNT = SIZES.length;
+    static final int DEFAULT = 2;
+    // A tier can be stretched this much to fill a cell before the next tier up is used
+    private static final float MAX_UPSCALE = 1.25f;
+
+    private ThumbnailTier() {}
+
+    /**
+     * @param cellSize The width of a grid cell in pixels
+     * @return The index of the tier to show in the cell
+     */
+    static int forCellSize(int cellSize) {
+        if(cellSize <= 0) {
+            return DEFAULT;
+        }
+        for(int tier = 0; tier != COUNT; ++tier) {
+            if(SIZES[tier] * MAX_UPSCALE >= cellSize) {
+                return tier;
+            }
+        }
+        return COUNT - 1;
+    }
+}
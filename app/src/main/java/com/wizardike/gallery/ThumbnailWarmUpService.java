@@ -0,0 +1,311 @@
+package com.wizardike.gallery;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Fills the disk thumbnail cache while the device is idle and charging, so the first scroll
+ * through a large library after installing or importing photos finds its thumbnails on disk.
+ * Images are walked newest first, the order the grid shows them, in batches decoded in parallel
+ * on the ImageEngine's scheduler at PRIORITY_BACKGROUND, so any other decode goes first. Each
+ * batch is followed by a pause as long as it took to decode, and the walk waits while the grid is
+ * on screen so it never competes with decodes for visible cells.
+ * A checkpoint is saved after every batch so a stopped job carries on where it left off, and once
+ * a walk finishes the next one stops at the images it has already covered.
+ * Once the thumbnails are warm the images that changed are hashed for the similar photos view,
+ * which is cheap as their grid thumbnails are then on disk, so only a thumbnail is decoded.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class ThumbnailWarmUpService extends JobService {
+    private static final String TAG = "ThumbnailWarmUp";
+    private static final int JOB_ID = 1;
+    private static final String PREFERENCES = "thumbnail_warm_up";
+    // Images decoded per batch for each worker thread
+    private static final int BATCH_PER_WORKER = 8;
+
+    // The number of grids on screen, the walk waits while there are any
+    private static final Object gridLock = new Object();
+    private static int visibleGrids = 0;
+
+    private volatile boolean stopped;
+    private Thread walker;
+    private ImageEngine engine;
+    private volatile DuplicateFinder duplicateFinder;
+
+    /**
+     * Schedules the warm up to run the next time the device is idle and charging, unless it is
+     * already scheduled. Does nothing before Lollipop.
+     */
+    static void schedule(Context context) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        JobScheduler jobScheduler = (JobScheduler)context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if(jobScheduler == null) {
+            return;
+        }
+        for(JobInfo job : jobScheduler.getAllPendingJobs()) {
+            if(job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        JobInfo.Builder builder = new JobInfo.Builder(JOB_ID, new ComponentName(context, ThumbnailWarmUpService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setRequiresStorageNotLow(true);
+        }
+        jobScheduler.schedule(builder.build());
+    }
+
+    /**
+     * Must be called when a grid of thumbnails is shown or hidden, the warm up pauses while one is shown.
+     */
+    static void setGridVisible(boolean visible) {
+        synchronized (gridLock) {
+            visibleGrids += visible ? 1 : -1;
+            if(visibleGrids == 0) {
+                gridLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return A description of how far the last walk got, for dumps
+     */
+    static String getProgress(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        return preferences.getInt("warmed", 0) + " thumbnails checked"
+                + (preferences.getBoolean("walking", false) ? ", in progress" : "");
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        stopped = false;
+        engine = ImageEngine.get(this);
+        walker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean finished;
+                try {
+                    finished = warmUp();
+                    if(finished && !stopped) {
+                        duplicateFinder = new DuplicateFinder(ThumbnailWarmUpService.this, engine,
+                                DecodeScheduler.PRIORITY_BACKGROUND);
+                        finished = !stopped && duplicateFinder.updateIndex();
+                    }
+                } catch (SecurityException e) {
+                    // Permission to read the images was taken away, nothing to do until it's given back
+                    Log.w(TAG, "Can't read the images", e);
+                    finished = true;
+                } catch (RuntimeException e) {
+                    // Like a failed query or a corrupt image crashing the decoder, try again later
+                    // from the last checkpoint rather than taking the app down
+                    Log.e(TAG, "Warming up failed", e);
+                    finished = false;
+                }
+                if(!stopped) {
+                    jobFinished(params, !finished);
+                }
+            }
+        }, TAG);
+        walker.setPriority(Thread.MIN_PRIORITY);
+        walker.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        stopped = true;
+        synchronized (gridLock) {
+            gridLock.notifyAll();
+        }
+        final DuplicateFinder finder = duplicateFinder;
+        if(finder != null) {
+            finder.cancel();
+        }
+        if(walker != null) {
+            walker.interrupt();
+        }
+        // Run again when the device is next idle, carrying on from the last checkpoint
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Anything still queued does nothing once stopped
+        stopped = true;
+    }
+
+    /**
+     * Walks the images newest first from the last checkpoint, decoding the thumbnails that aren't
+     * in the disk cache.
+     * @return True if the walk reached the images covered by the last finished walk
+     */
+    private boolean warmUp() {
+        final SharedPreferences preferences = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        final MediaStoreSync sync = new MediaStoreSync(getContentResolver());
+        try {
+            final int tier = getGridTier();
+            final int size = ThumbnailTier.SIZES[tier];
+            final int mode = ThumbnailFormat.getDefaultMode((ActivityManager)getSystemService(ACTIVITY_SERVICE));
+            final Bitmap.Config config = ThumbnailFormat.getDecodeConfig(mode, tier);
+            final DiskThumbnailCache diskCache = engine.getDiskCache();
+            final BitmapPool pool = engine.getBitmapPool();
+            final int batchSize = engine.getScheduler().getThreadCount() * BATCH_PER_WORKER;
+
+            boolean walking = preferences.getBoolean("walking", false);
+            long afterDateAdded = preferences.getLong("afterDateAdded", 0L);
+            long afterId = preferences.getLong("afterId", 0L);
+            long newestDateAdded = preferences.getLong("newestDateAdded", 0L);
+            long newestId = preferences.getLong("newestId", 0L);
+            final long stopDateAdded = preferences.getLong("stopDateAdded", -1L);
+            final long stopId = preferences.getLong("stopId", -1L);
+            int warmed = walking ? preferences.getInt("warmed", 0) : 0;
+            while(waitWhileGridVisible()) {
+                final MediaIndex batch = walking ? sync.queryPageAfter(afterDateAdded, afterId, batchSize)
+                        : sync.queryPage(0, batchSize);
+                final int count = batch.getCount();
+                if(!walking) {
+                    if(count == 0) {
+                        return true;
+                    }
+                    walking = true;
+                    newestDateAdded = batch.getDateAdded(0);
+                    newestId = batch.getId(0);
+                }
+                // Images as old as the newest one the last finished walk saw are already warm
+                int end = 0;
+                while(end < count && isNewer(batch.getDateAdded(end), batch.getId(end), stopDateAdded, stopId)) {
+                    ++end;
+                }
+                final long startTime = SystemClock.elapsedRealtime();
+                if(!decodeBatch(batch, end, size, config, diskCache, pool)) {
+                    // Stopped part way, the batch is done again from the last checkpoint
+                    return false;
+                }
+                warmed += end;
+                SharedPreferences.Editor editor = preferences.edit().putInt("warmed", warmed);
+                if(end < count || count < batchSize) {
+                    editor.putBoolean("walking", false)
+                            .putLong("stopDateAdded", newestDateAdded)
+                            .putLong("stopId", newestId)
+                            .apply();
+                    Log.i(TAG, "Finished, " + warmed + " thumbnails checked");
+                    return true;
+                }
+                afterDateAdded = batch.getDateAdded(count - 1);
+                afterId = batch.getId(count - 1);
+                editor.putBoolean("walking", true)
+                        .putLong("afterDateAdded", afterDateAdded)
+                        .putLong("afterId", afterId)
+                        .putLong("newestDateAdded", newestDateAdded)
+                        .putLong("newestId", newestId)
+                        .apply();
+                // Throttle to half the cores' time so the device stays cool
+                try {
+                    Thread.sleep(SystemClock.elapsedRealtime() - startTime);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return false;
+        } finally {
+            sync.close();
+        }
+    }
+
+    /**
+     * Decodes the thumbnails of the first count images of batch that aren't in the disk cache, in
+     * parallel on the engine's scheduler.
+     * @return False if the job was stopped before the batch finished
+     */
+    private boolean decodeBatch(final MediaIndex batch, int count, final int size, final Bitmap.Config config,
+                                final DiskThumbnailCache diskCache, final BitmapPool pool) {
+        final CountDownLatch remaining = new CountDownLatch(count);
+        final DecodeScheduler.Callback<Void> done = new DecodeScheduler.Callback<Void>() {
+            @Override
+            public void onResult(Void result) {
+                remaining.countDown();
+            }
+        };
+        for(int i = 0; i != count; ++i) {
+            final String filename = batch.getPath(i);
+            final int orientation = batch.getOrientation(i);
+            engine.getScheduler().submit(null, DecodeScheduler.PRIORITY_BACKGROUND, new DecodeScheduler.Task<Void>() {
+                @Override
+                public Void run() {
+                    if(stopped) {
+                        return null;
+                    }
+                    final String key = DiskThumbnailCache.getKey(filename, size);
+                    if(key == null || diskCache.contains(key)) {
+                        return null;
+                    }
+                    Bitmap thumbnail = ThumbnailDecoder.getThumbnail(filename, size, orientation, config, pool);
+                    if(thumbnail != null) {
+                        Metrics.WARM_UP_DECODES.increment();
+                        diskCache.put(key, thumbnail);
+                        pool.put(thumbnail);
+                    }
+                    return null;
+                }
+            }, done);
+        }
+        try {
+            remaining.await();
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return !stopped;
+    }
+
+    /**
+     * Blocks while a grid is on screen.
+     * @return False if the job was stopped
+     */
+    private boolean waitWhileGridVisible() {
+        synchronized (gridLock) {
+            while(visibleGrids != 0 && !stopped) {
+                try {
+                    gridLock.wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        return !stopped;
+    }
+
+    /**
+     * @return The tier the grid showed last time the app ran, which is what it will most likely ask for
+     */
+    private int getGridTier() {
+        final float scale = getSharedPreferences(ViewAllPhotosActivity.GRID_STATE_PREFERENCES, MODE_PRIVATE)
+                .getFloat("scale", 4.0f);
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return ThumbnailTier.forCellSize(metrics.widthPixels / Math.max(1, (int)scale));
+    }
+
+    /**
+     * @return True if the image comes before the other in the grid's order, date added then _ID descending
+     */
+    private static boolean isNewer(long dateAdded, long id, long otherDateAdded, long otherId) {
+        return dateAdded > otherDateAdded || (dateAdded == otherDateAdded && id > otherId);
+    }
+}
@@ -0,0 +1,448 @@
+package com.wizardike.gallery;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.util.LongSparseArray;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+/**
+ * A view that shows one image and can be zoomed and panned.
+ * A preview and a screen sized sampled decode of the image are shown first. When zoomed in past
+ * the detail of the sampled decode, the visible part of the image is decoded in tiles at the
+ * resolution needed, so the full image is never decoded into memory at once.
+ */
+public class TiledImageView extends View {
+    // The width and height of a tile in decoded pixels
+    private static final int TILE_SIZE = 512;
+    // How far the image can be zoomed in, in screen pixels per image pixel
+    private static final float MAX_PIXEL_SCALE = 2.0f;
+    private static final float MIN_ZOOM = 4.0f;
+
+    /**
+     * A tile of the image decoded at a sample size.
+     */
+    private static final class Tile {
+        final long key;
+        final Rect region;
+        final int sampleSize;
+        Bitmap bitmap = null;
+        DecodeScheduler.Request request = null;
+        int lastDrawnFrame;
+
+        Tile(long key, Rect region, int sampleSize) {
+            this.key = key;
+            this.region = region;
+            this.sampleSize = sampleSize;
+        }
+    }
+
+    private ScaleGestureDetector scaleDetector;
+    private GestureDetector gestureDetector;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    // Maps image pixels to the rotated image, then to the view
+    private final Matrix imageToOriented = new Matrix();
+    private final Matrix orientedToView = new Matrix();
+    private final Matrix imageToView = new Matrix();
+    private final Matrix viewToImage = new Matrix();
+    private final Matrix drawMatrix = new Matrix();
+    private final RectF visibleRegion = new RectF();
+
+    private int imageWidth = 0;
+    private int imageHeight = 0;
+    private int orientation = 0;
+    private float scale = 1.0f;
+    private float minScale = 1.0f;
+    private float maxScale = 1.0f;
+    private float translateX = 0.0f;
+    private float translateY = 0.0f;
+
+    private Bitmap preview = null;
+    private Bitmap base = null;
+    private int baseSampleSize = 1;
+
+    private BitmapRegionDecoder regionDecoder = null;
+    private DecodeScheduler scheduler = null;
+    private final LongSparseArray<Tile> tiles = new LongSparseArray<>();
+    private long maxTileBytes;
+    private long tileBytes = 0;
+    private int frame = 0;
+
+    public TiledImageView(Context context) {
+        super(context);
+        init(context);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init(context);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init(context);
+    }
+
+    @TargetApi(21)
+    public TiledImageView(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+        super(context, attrs, defStyleAttr, defStyleRes);
+        init(context);
+    }
+
+    private void init(Context context) {
+        scaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+        gestureDetector = new GestureDetector(context, new GestureListener());
+        maxTileBytes = Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    /**
+     * Sets the size of the image being shown, dropping anything shown for the previous image.
+     * @param width The width of the image file in pixels
+     * @param height The height of the image file in pixels
+     * @param orientation How far the image needs rotating clockwise in degrees
+     */
+    void setImage(int width, int height, int orientation) {
+        recycle();
+        preview = null;
+        base = null;
+        imageWidth = width;
+        imageHeight = height;
+        this.orientation = orientation;
+        imageToOriented.setRotate(orientation);
+        switch(orientation) {
+            case 90:
+                imageToOriented.postTranslate(height, 0);
+                break;
+            case 180:
+                imageToOriented.postTranslate(width, height);
+                break;
+            case 270:
+                imageToOriented.postTranslate(0, width);
+                break;
+        }
+        resetScale();
+    }
+
+    /**
+     * Shows a square thumbnail cropped from the centre of the image until the image is loaded.
+     * Thumbnails are already rotated the right way up, so it is drawn without imageToOriented.
+     */
+    void setPreview(Bitmap preview) {
+        this.preview = preview;
+        invalidate();
+    }
+
+    /**
+     * Shows a sampled decode of the whole image, used whenever no more detail is needed.
+     */
+    void setBase(Bitmap base, int sampleSize) {
+        this.base = base;
+        this.baseSampleSize = sampleSize;
+        preview = null;
+        invalidate();
+    }
+
+    /**
+     * Allows tiles to be decoded when zoomed in past the detail of the base image.
+     * The view takes ownership of the decoder.
+     * @param scheduler Used to decode the tiles
+     */
+    void setRegionDecoder(BitmapRegionDecoder regionDecoder, DecodeScheduler scheduler) {
+        recycle();
+        this.regionDecoder = regionDecoder;
+        this.scheduler = scheduler;
+        invalidate();
+    }
+
+    /**
+     * Cancels tile decodes and releases the region decoder and tiles.
+     */
+    void recycle() {
+        for(int i = 0, count = tiles.size(); i != count; ++i) {
+            Tile tile = tiles.valueAt(i);
+            if(tile.request != null) {
+                tile.request.cancel();
+            }
+        }
+        tiles.clear();
+        tileBytes = 0;
+        if(regionDecoder != null) {
+            final BitmapRegionDecoder decoder = regionDecoder;
+            // The queued tiles were cancelled above, a tile decode still running holds the
+            // decoder's lock, so it's released on a worker thread rather than waiting on the ui thread
+            scheduler.submit(null, DecodeScheduler.PRIORITY_TILE, new DecodeScheduler.Task<Void>() {
+                @Override
+                public Void run() {
+                    synchronized (decoder) {
+                        decoder.recycle();
+                    }
+                    return null;
+                }
+            }, null);
+            regionDecoder = null;
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        resetScale();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        scaleDetector.onTouchEvent(event);
+        gestureDetector.onTouchEvent(event);
+        return true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if(imageWidth == 0) {
+            return;
+        }
+        if(base != null) {
+            drawMatrix.setScale((float)imageWidth / base.getWidth(), (float)imageHeight / base.getHeight());
+            drawMatrix.postConcat(imageToView);
+            canvas.drawBitmap(base, drawMatrix, paint);
+        } else if(preview != null) {
+            final int side = Math.min(imageWidth, imageHeight);
+            drawMatrix.setScale((float)side / preview.getWidth(), (float)side / preview.getHeight());
+            drawMatrix.postTranslate((getOrientedWidth() - side) / 2, (getOrientedHeight() - side) / 2);
+            drawMatrix.postConcat(orientedToView);
+            canvas.drawBitmap(preview, drawMatrix, paint);
+        }
+        drawTiles(canvas);
+    }
+
+    /**
+     * Draws the tiles covering the visible part of the image at the current zoom, requesting any
+     * that aren't decoded yet and cancelling requests for tiles that are no longer needed.
+     */
+    private void drawTiles(Canvas canvas) {
+        if(regionDecoder == null) {
+            return;
+        }
+        ++frame;
+        final int sampleSize = SampleSize.forScale(scale);
+        if(base == null || sampleSize < baseSampleSize) {
+            visibleRegion.set(0, 0, getWidth(), getHeight());
+            viewToImage.mapRect(visibleRegion);
+            final int tileImageSize = TILE_SIZE * sampleSize;
+            final int firstColumn = Math.max(0, (int)visibleRegion.left / tileImageSize);
+            final int lastColumn = Math.min((imageWidth - 1) / tileImageSize, (int)visibleRegion.right / tileImageSize);
+            final int firstRow = Math.max(0, (int)visibleRegion.top / tileImageSize);
+            final int lastRow = Math.min((imageHeight - 1) / tileImageSize, (int)visibleRegion.bottom / tileImageSize);
+            for(int row = firstRow; row <= lastRow; ++row) {
+                for(int column = firstColumn; column <= lastColumn; ++column) {
+                    final long key = ((long)sampleSize << 48) | ((long)row << 24) | column;
+                    Tile tile = tiles.get(key);
+                    if(tile == null) {
+                        final int left = column * tileImageSize;
+                        final int top = row * tileImageSize;
+                        tile = new Tile(key, new Rect(left, top, Math.min(imageWidth, left + tileImageSize),
+                                Math.min(imageHeight, top + tileImageSize)), sampleSize);
+                        tiles.put(key, tile);
+                        requestTile(tile);
+                    }
+                    tile.lastDrawnFrame = frame;
+                    if(tile.bitmap != null) {
+                        drawMatrix.setScale((float)tile.region.width() / tile.bitmap.getWidth(),
+                                (float)tile.region.height() / tile.bitmap.getHeight());
+                        drawMatrix.postTranslate(tile.region.left, tile.region.top);
+                        drawMatrix.postConcat(imageToView);
+                        canvas.drawBitmap(tile.bitmap, drawMatrix, paint);
+                    }
+                }
+            }
+        }
+        // Tiles that scrolled off screen before being decoded aren't worth decoding
+        for(int i = tiles.size() - 1; i >= 0; --i) {
+            Tile tile = tiles.valueAt(i);
+            if(tile.lastDrawnFrame != frame && tile.bitmap == null) {
+                tile.request.cancel();
+                tiles.removeAt(i);
+            }
+        }
+    }
+
+    private void requestTile(final Tile tile) {
+        final BitmapRegionDecoder decoder = regionDecoder;
+        tile.request = scheduler.submit(null, DecodeScheduler.PRIORITY_TILE, new DecodeScheduler.Task<Bitmap>() {
+            @Override
+            public Bitmap run() {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = tile.sampleSize;
+                synchronized (decoder) {
+                    if(decoder.isRecycled()) {
+                        return null;
+                    }
+                    try {
+                        return decoder.decodeRegion(tile.region, options);
+                    } catch (IllegalArgumentException e) {
+                        return null;
+                    }
+                }
+            }
+        }, new DecodeScheduler.Callback<Bitmap>() {
+            @Override
+            public void onResult(final Bitmap bitmap) {
+                if(bitmap == null) {
+                    return;
+                }
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTileLoaded(tile, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onTileLoaded(Tile tile, Bitmap bitmap) {
+        if(tiles.get(tile.key) != tile || tile.bitmap != null) {
+            return;
+        }
+        tile.bitmap = bitmap;
+        tile.request = null;
+        tileBytes += BitmapPool.getAllocationByteCount(bitmap);
+        trimTiles();
+        invalidate();
+    }
+
+    /**
+     * Drops the tiles that were drawn longest ago until the tiles fit in their memory budget.
+     */
+    private void trimTiles() {
+        while(tileBytes > maxTileBytes) {
+            int oldestIndex = -1;
+            int oldestFrame = Integer.MAX_VALUE;
+            for(int i = 0, count = tiles.size(); i != count; ++i) {
+                Tile tile = tiles.valueAt(i);
+                if(tile.bitmap != null && tile.lastDrawnFrame < oldestFrame) {
+                    oldestFrame = tile.lastDrawnFrame;
+                    oldestIndex = i;
+                }
+            }
+            if(oldestIndex == -1) {
+                return;
+            }
+            tileBytes -= BitmapPool.getAllocationByteCount(tiles.valueAt(oldestIndex).bitmap);
+            tiles.removeAt(oldestIndex);
+        }
+    }
+
+    private int getOrientedWidth() {
+        return orientation % 180 == 0 ? imageWidth : imageHeight;
+    }
+
+    private int getOrientedHeight() {
+        return orientation % 180 == 0 ? imageHeight : imageWidth;
+    }
+
+    /**
+     * Fits the whole image in the view.
+     */
+    private void resetScale() {
+        if(imageWidth == 0 || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        minScale = Math.min((float)getWidth() / getOrientedWidth(), (float)getHeight() / getOrientedHeight());
+        maxScale = Math.max(minScale * MIN_ZOOM, MAX_PIXEL_SCALE);
+        scale = minScale;
+        updateMatrix();
+    }
+
+    /**
+     * Keeps the image on screen, centring it along any axis where it is smaller than the view,
+     * then recalculates the matrices used to draw it.
+     */
+    private void updateMatrix() {
+        final float width = getOrientedWidth() * scale;
+        if(width <= getWidth()) {
+            translateX = (getWidth() - width) / 2;
+        } else {
+            translateX = Math.min(0, Math.max(getWidth() - width, translateX));
+        }
+        final float height = getOrientedHeight() * scale;
+        if(height <= getHeight()) {
+            translateY = (getHeight() - height) / 2;
+        } else {
+            translateY = Math.min(0, Math.max(getHeight() - height, translateY));
+        }
+        orientedToView.setScale(scale, scale);
+        orientedToView.postTranslate(translateX, translateY);
+        imageToView.set(imageToOriented);
+        imageToView.postConcat(orientedToView);
+        imageToView.invert(viewToImage);
+        invalidate();
+    }
+
+    /**
+     * Zooms keeping the point under focusX, focusY still.
+     */
+    private void zoomTo(float newScale, float focusX, float focusY) {
+        newScale = Math.max(minScale, Math.min(maxScale, newScale));
+        translateX = focusX - (focusX - translateX) * newScale / scale;
+        translateY = focusY - (focusY - translateY) * newScale / scale;
+        scale = newScale;
+        updateMatrix();
+    }
+
+    /**
+     * Handles pinch to zoom
+     */
+    private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            zoomTo(scale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+            return true;
+        }
+    }
+
+    /**
+     * Handles panning, double tap to zoom and taps
+     */
+    private class GestureListener extends GestureDetector.SimpleOnGestureListener {
+        @Override
+        public boolean onDown(MotionEvent e) {
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            translateX -= distanceX;
+            translateY -= distanceY;
+            updateMatrix();
+            return true;
+        }
+
+        @Override
+        public boolean onDoubleTap(MotionEvent e) {
+            if(scale > minScale) {
+                zoomTo(minScale, e.getX(), e.getY());
+            } else {
+                zoomTo(Math.max(1.0f, minScale * 2), e.getX(), e.getY());
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onSingleTapConfirmed(MotionEvent e) {
+            return performClick();
+        }
+    }
+}
@@ -2,52 +2,127 @@ package com.wizardike.gallery;
 
 import android.Manifest;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.Gravity;
 import android.view.View;
-import android.widget.AdapterView;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 
 import java.io.File;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 /**
- * An activity that can be used to view all the images on a phone in a grid
+ * An activity that can be used to view all the images on a phone in a grid, or the images in one
+ * album if it is started with EXTRA_BUCKET_ID, or groups of similar images if it is started with
+ * EXTRA_DUPLICATES
  */
 public class ViewAllPhotosActivity extends AppCompatActivity {
+    private static final String TAG = "ViewAllPhotosActivity";
     private static final int READ_EXTERNAL_STORAGE_REQUEST_CODE = 1;
+    static final String GRID_STATE_PREFERENCES = "grid_state";
+    // Launch with this extra set to true to record metrics and show them over the grid, for example
+    // adb shell am start -n com.wizardike.gallery/.ViewAllPhotosActivity --ez metrics_overlay true
+    static final String EXTRA_METRICS_OVERLAY = "metrics_overlay";
+    // Launch with this extra set to one of the ThumbnailFormat modes to decode thumbnails in it
+    // instead of the device's default, for comparing them, for example MODE_QUALITY with
+    // adb shell am start -n com.wizardike.gallery/.ViewAllPhotosActivity --ei thumbnail_format 0
+    static final String EXTRA_THUMBNAIL_FORMAT = "thumbnail_format";
+    // The MediaStore BUCKET_ID of the album to show and its name, for showing one album
+    static final String EXTRA_BUCKET_ID = "bucket_id";
+    static final String EXTRA_BUCKET_NAME = "bucket_name";
+    // Set to true to show groups of similar images instead
+    static final String EXTRA_DUPLICATES = "duplicates";
 
     private int resumePosition = 0;
     private double scale = 4.0;
-    private ThreadPoolExecutor executor;
+    // The album being shown, null when showing every image
+    private String bucketId;
+    // Finds the similar images when showing them, null otherwise
+    private DuplicateFinder duplicateFinder;
+    // Shown while the similar images are being found
+    private ProgressBar duplicatesProgress;
+    private ImageEngine engine;
+    // Kept when the activity is recreated for a configuration change, see RetainedState
+    private RetainedState state;
+    // Cancelled when the activity finishes, the engine and its caches outlive it
+    private RequestGroup requests;
     private PhotoGridView photosView = null;
     private PhotoAdapter adapter;
     private boolean initializedOrShouldReinitialize = false;
     private boolean restarting;
+    private boolean adapterShown = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        final RetainedState retained = (RetainedState)getLastCustomNonConfigurationInstance();
+        if(retained == null) {
+            state = new RetainedState();
+            StartupMetrics.onActivityCreated();
+        } else {
+            state = retained;
+        }
+        state.activity = this;
+        requests = state.requests;
         setContentView(R.layout.activity_view_all_photos);
         photosView = findViewById(R.id.photos_view);
+        if(getIntent() != null && getIntent().hasExtra(EXTRA_BUCKET_ID)) {
+            bucketId = Long.toString(getIntent().getLongExtra(EXTRA_BUCKET_ID, 0L));
+            setTitle(getIntent().getStringExtra(EXTRA_BUCKET_NAME));
+        }
+        if(getIntent() != null && getIntent().getBooleanExtra(EXTRA_DUPLICATES, false)) {
+            if(state.duplicateFinder == null) {
+                // The images are hashed at the priority of visible thumbnails, this is what the user is waiting for
+                state.duplicateFinder = new DuplicateFinder(this, ImageEngine.get(this), DecodeScheduler.PRIORITY_VISIBLE);
+            }
+            duplicateFinder = state.duplicateFinder;
+            setTitle(R.string.similar_photos);
+            // Hashing a whole library for the first time takes a while
+            duplicatesProgress = new ProgressBar(this);
+            addContentView(duplicatesProgress, new FrameLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT,
+                    ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.CENTER));
+        }
         if(savedInstanceState != null) {
             resumePosition = savedInstanceState.getInt("resumePosition", 0);
             scale = savedInstanceState.getDouble("scale", 4.0);
+        } else if(bucketId == null && duplicateFinder == null) {
+            // Cold start, go back to where the grid was last time the app ran
+            SharedPreferences gridState = getSharedPreferences(GRID_STATE_PREFERENCES, MODE_PRIVATE);
+            resumePosition = gridState.getInt("resumePosition", 0);
+            scale = gridState.getFloat("scale", 4.0f);
         }
 
-        int threadPoolSize = Runtime.getRuntime().availableProcessors();
-        if(threadPoolSize < 1) {
-            threadPoolSize = 1;
+        engine = ImageEngine.get(this);
+
+        final boolean showMetrics = getIntent() != null && getIntent().getBooleanExtra(EXTRA_METRICS_OVERLAY, false);
+        if(BuildConfig.DEBUG || showMetrics) {
+            Metrics.enabled = true;
+        }
+        if(showMetrics) {
+            addContentView(new MetricsOverlay(this, engine.getScheduler()), new ViewGroup.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
         }
-        executor = new ThreadPoolExecutor(1,
-                threadPoolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
 
         restarting = false;
+        if(state.initialized) {
+            // Recreated after a configuration change, carry on with the images already loaded
+            reattach();
+            return;
+        }
         // Get permission to read images from the phone's storage
         if (Build.VERSION.SDK_INT > 23 && checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE)
                 != PackageManager.PERMISSION_GRANTED) {
@@ -63,7 +138,11 @@ public class ViewAllPhotosActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
-        if(restarting) {
+        ThumbnailWarmUpService.setGridVisible(true);
+        if(adapter != null) {
+            adapter.onResume();
+        }
+        if(restarting && duplicateFinder == null) {
             if(initializedOrShouldReinitialize) {
                 initializedOrShouldReinitialize = false;
                 reInit();
@@ -76,84 +155,256 @@ public class ViewAllPhotosActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        resumePosition = photosView.getFirstVisiblePosition();
+        ThumbnailWarmUpService.setGridVisible(false);
+        resumePosition = Math.max(0, photosView.getFirstVisiblePosition());
         scale = photosView.getScale();
         restarting = true;
+        if(adapterShown && bucketId == null && duplicateFinder == null) {
+            adapter.saveSnapshot(resumePosition);
+            getSharedPreferences(GRID_STATE_PREFERENCES, MODE_PRIVATE).edit()
+                    .putInt("resumePosition", resumePosition)
+                    .putFloat("scale", (float)scale)
+                    .apply();
+        }
     }
 
     @Override
     protected void onSaveInstanceState(Bundle savedInstanceState) {
         super.onSaveInstanceState(savedInstanceState);
-        savedInstanceState.putInt("resumePosition", photosView.getFirstVisiblePosition());
+        savedInstanceState.putInt("resumePosition", Math.max(0, photosView.getFirstVisiblePosition()));
         savedInstanceState.putDouble("scale", photosView.getScale());
     }
 
+    /**
+     * Keeps the adapter, its paged index and the pending thumbnail requests for the activity that
+     * replaces this one, so a configuration change doesn't query the MediaStore or decode anything again.
+     */
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return state;
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        executor.shutdown();
+        state.activity = null;
+        if(isChangingConfigurations()) {
+            // The next activity takes the state over. Detaching the adapter stops this activity's
+            // grid observing it, decodes in flight still finish into the shared cache
+            photosView.setAdapter(null);
+            return;
+        }
+        if(adapter != null) {
+            adapter.destroy();
+        }
+        requests.cancelAll();
+        if(duplicateFinder != null) {
+            duplicateFinder.cancel();
+        }
+    }
+
+    /**
+     * Adds the loading metrics to `adb shell dumpsys activity com.wizardike.gallery`.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("Startup: grid shown after " + StartupMetrics.getGridShownTime() + "ms"
+                + (StartupMetrics.wasFromSnapshot() ? " from snapshot" : "")
+                + ", first thumbnail after " + StartupMetrics.getFirstThumbnailTime() + "ms");
+        writer.print(prefix);
+        writer.println("DecodeScheduler: " + engine.getScheduler().getStats());
+        writer.print(prefix);
+        writer.println("Warm-up: " + ThumbnailWarmUpService.getProgress(this));
+        Metrics.dump(prefix, writer);
     }
 
     private void init() {
-        adapter = new PhotoAdapter(this, executor,
-                new PhotoAdapter.CreatedCallback() {
+        state.initialized = true;
+        // Fill the disk cache the next time the device is idle, for images the grid hasn't shown yet
+        ThumbnailWarmUpService.schedule(this);
+        if(duplicateFinder != null) {
+            findDuplicates(state);
+            return;
+        }
+        state.loading = true;
+        adapter = new PhotoAdapter(this, engine, requests, bucketId, resumePosition,
+                new AdapterCreatedCallback(state, false));
+        state.adapter = adapter;
+        if(getIntent() != null && getIntent().hasExtra(EXTRA_THUMBNAIL_FORMAT)) {
+            adapter.setThumbnailFormat(getIntent().getIntExtra(EXTRA_THUMBNAIL_FORMAT, ThumbnailFormat.MODE_BALANCED));
+        }
+        if(adapter.isReady()) {
+            // The adapter started from the images saved last time, show them straight away and
+            // start loading the thumbnails that will be on screen before the grid asks for them
+            adapter.preloadThumbnails(resumePosition, getVisibleCellCount(), DecodeScheduler.PRIORITY_URGENT);
+            showAdapter(true);
+        }
+    }
+
+    /**
+     * Shows the state kept from the activity this one replaced. If it was still loading, the
+     * AdapterCreatedCallback finishes showing it when it's done.
+     */
+    private void reattach() {
+        if(duplicateFinder != null) {
+            if(state.duplicates != null) {
+                showDuplicates(state.duplicates);
+            }
+            return;
+        }
+        adapter = state.adapter;
+        if(adapter.isReady()) {
+            showAdapter(false);
+        }
+        if(!state.loading) {
+            // Like a finished first load, the next restart refreshes the images
+            initializedOrShouldReinitialize = true;
+        }
+    }
+
+    private void onAdapterCreated() {
+        if(!adapterShown) {
+            showAdapter(false);
+        }
+        if(!initializedOrShouldReinitialize) {
+            initializedOrShouldReinitialize = true;
+        } else {
+            //re-initialize
+            initializedOrShouldReinitialize = false;
+            reInit();
+        }
+    }
+
+    private void onAdapterReCreated() {
+        if(!adapterShown) {
+            // The activity was recreated before the first load finished
+            showAdapter(false);
+        }
+        if (!initializedOrShouldReinitialize) {
+            final int count = adapter.getItemCount();
+            if (count > 0) {
+                resumePosition = Math.min(count - 1, resumePosition);
+                photosView.scrollToPosition(resumePosition);
+            }
+            photosView.setScale(scale);
+            initializedOrShouldReinitialize = true;
+        } else {
+            //re-initialize
+            initializedOrShouldReinitialize = false;
+            reInit();
+        }
+    }
+
+    /**
+     * Gives the grid the adapter and restores the scroll position and scale.
+     * @param fromSnapshot True if the adapter is showing the images saved last time the app ran
+     */
+    private void showAdapter(boolean fromSnapshot) {
+        adapter.setOnImageClickListener(new PhotoAdapter.OnImageClickListener() {
+            @Override
+            public void onImageClick(int position) {
+                String name = adapter.getFileName(position);
+                if(name != null) {
+                    Intent intent = new Intent(ViewAllPhotosActivity.this, ViewOnePhotoActivity.class);
+                    intent.setAction(Intent.ACTION_VIEW);
+                    intent.setData(Uri.fromFile(new File(name)));
+                    intent.putExtra("orientation", adapter.getOrientation(position));
+                    intent.putExtra("id", adapter.getItemId(position));
+                    startActivity(intent);
+                }
+            }
+        });
+        photosView.setAdapter(adapter);
+        photosView.addOnScrollListener(new ThumbnailPrefetcher(adapter, engine.getScheduler().getThreadCount()));
+        final int count = adapter.getItemCount();
+        if (count > 0) {
+            resumePosition = Math.min(count - 1, resumePosition);
+            photosView.scrollToPosition(resumePosition);
+        }
+        photosView.setScale(scale);
+        adapterShown = true;
+        StartupMetrics.onGridShown(fromSnapshot);
+    }
+
+    /**
+     * Groups the similar images on a thread of its own, as DuplicateFinder blocks while the images
+     * are hashed, then shows them in whichever activity has the state by then.
+     * Static so the thread doesn't keep a destroyed activity alive.
+     */
+    private static void findDuplicates(final RetainedState state) {
+        final DuplicateFinder finder = state.duplicateFinder;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DuplicateFinder.Groups foundGroups;
+                try {
+                    foundGroups = finder.findDuplicates();
+                } catch (RuntimeException e) {
+                    // For example a SecurityException if the permission to read the images was revoked
+                    Log.w(TAG, "Unable to find similar photos", e);
+                    foundGroups = DuplicateFinder.Groups.EMPTY;
+                }
+                if(foundGroups == null) {
+                    // Cancelled
+                    return;
+                }
+                final DuplicateFinder.Groups groups = foundGroups;
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
                     @Override
-                    public void onCreateFinished(final PhotoAdapter adapter) {
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                photosView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-                                    @Override
-                                    public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-                                        String name = adapter.getFileName(position);
-                                        if(name != null) {
-                                            Intent intent = new Intent(ViewAllPhotosActivity.this, ViewOnePhotoActivity.class);
-                                            intent.setAction(Intent.ACTION_VIEW);
-                                            intent.setData(Uri.fromFile(new File(name)));
-                                            intent.putExtra("orientation", adapter.getOrientation(position));
-                                            startActivity(intent);
-                                        }
-                                    }
-                                });
-                                photosView.setAdapter(adapter);
-                                if(!initializedOrShouldReinitialize) {
-                                    final int count = adapter.getCount();
-                                    if (count > 0) {
-                                        resumePosition = Math.min(count - 1, resumePosition);
-                                        photosView.setSelection(resumePosition);
-                                    }
-                                    photosView.setScale(scale);
-                                    initializedOrShouldReinitialize = true;
-                                } else {
-                                    //re-initialize
-                                    initializedOrShouldReinitialize = false;
-                                    reInit();
-                                }
+                    public void run() {
+                        state.duplicates = groups;
+                        final ViewAllPhotosActivity activity = state.activity;
+                        if(activity != null && !activity.isFinishing()) {
+                            activity.showDuplicates(groups);
                         }
-                        });
                     }
                 });
+            }
+        }, "DuplicateFinder").start();
     }
 
-    private void reInit() {
-        adapter.reCreate(new PhotoAdapter.CreatedCallback() {
+    private void showDuplicates(final DuplicateFinder.Groups groups) {
+        duplicatesProgress.setVisibility(View.GONE);
+        if(groups.getGroupCount() == 0) {
+            TextView empty = new TextView(this);
+            empty.setText(R.string.no_similar_photos);
+            empty.setTextColor(ContextCompat.getColor(this, R.color.albumLabelText));
+            addContentView(empty, new FrameLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT,
+                    ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.CENTER));
+        }
+        final DuplicatesAdapter duplicatesAdapter = new DuplicatesAdapter(this, engine, requests, groups);
+        duplicatesAdapter.setOnImageClickListener(new DuplicatesAdapter.OnImageClickListener() {
             @Override
-            public void onCreateFinished(final PhotoAdapter adapter) {
-                if (!initializedOrShouldReinitialize) {
-                    final int count = adapter.getCount();
-                    if (count > 0) {
-                        resumePosition = Math.min(count - 1, resumePosition);
-                        photosView.setSelection(resumePosition);
-                    }
-                    photosView.setScale(scale);
-                    initializedOrShouldReinitialize = true;
-                } else {
-                    //re-initialize
-                    initializedOrShouldReinitialize = false;
-                    reInit();
-                }
+            public void onImageClick(int index) {
+                Intent intent = new Intent(ViewAllPhotosActivity.this, ViewOnePhotoActivity.class);
+                intent.setAction(Intent.ACTION_VIEW);
+                intent.setData(Uri.fromFile(new File(groups.images.getPath(index))));
+                intent.putExtra("orientation", groups.images.getOrientation(index));
+                intent.putExtra("id", groups.images.getId(index));
+                startActivity(intent);
             }
         });
+        photosView.setSpanSizeLookup(duplicatesAdapter.getSpanSizeLookup(photosView));
+        photosView.setAdapter(duplicatesAdapter);
+        photosView.setScale(scale);
+    }
+
+    /**
+     * Estimates how many cells fit on the screen at the current scale, assuming square cells.
+     */
+    private int getVisibleCellCount() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        final int columns = Math.max(1, (int)scale);
+        final int cellSize = Math.max(1, metrics.widthPixels / columns);
+        final int rows = metrics.heightPixels / cellSize + 2;
+        return columns * rows;
+    }
+
+    private void reInit() {
+        state.loading = true;
+        adapter.reCreate(resumePosition, new AdapterCreatedCallback(state, true));
     }
 
     @Override
@@ -168,4 +419,54 @@ public class ViewAllPhotosActivity extends AppCompatActivity {
             init();
         }
     }
+
+    /**
+     * What the activity keeps when it's recreated for a configuration change: the adapter with its
+     * paged index, the pending thumbnail requests and the similar images search. The decode threads
+     * and caches are already process wide in the ImageEngine.
+     * Only used on the ui thread.
+     */
+    private static final class RetainedState {
+        final RequestGroup requests = new RequestGroup();
+        // The activity using the state, null between one being destroyed and the next being created
+        ViewAllPhotosActivity activity;
+        // True once the activity had permission to read the images and started loading them
+        boolean initialized = false;
+        // True while the adapter is loading or refreshing its images
+        boolean loading = false;
+        PhotoAdapter adapter;
+        DuplicateFinder duplicateFinder;
+        // The similar images once they have been found
+        DuplicateFinder.Groups duplicates;
+    }
+
+    /**
+     * Tells whichever activity has the state by the time the adapter finishes loading, so a load
+     * started before a configuration change isn't lost or done again, and doesn't keep the old
+     * activity alive.
+     */
+    private static final class AdapterCreatedCallback implements PhotoAdapter.CreatedCallback {
+        private final RetainedState state;
+        // True if the load was a refresh started by reInit
+        private final boolean refresh;
+
+        AdapterCreatedCallback(RetainedState state, boolean refresh) {
+            this.state = state;
+            this.refresh = refresh;
+        }
+
+        @Override
+        public void onCreateFinished(PhotoAdapter adapter) {
+            state.loading = false;
+            final ViewAllPhotosActivity activity = state.activity;
+            if(activity == null || activity.isFinishing()) {
+                return;
+            }
+            if(refresh) {
+                activity.onAdapterReCreated();
+            } else {
+                activity.onAdapterCreated();
+            }
+        }
+    }
 }
@@ -3,24 +3,34 @@ package com.wizardike.gallery;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.net.Uri;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
-import android.view.MotionEvent;
+import android.util.DisplayMetrics;
 import android.view.View;
-import android.widget.ImageView;
+
+import java.io.IOException;
 
 /**
  * An activity that can be used to view one image
  */
 public class ViewOnePhotoActivity extends AppCompatActivity {
+    private ImageEngine engine;
+    // Cancelled when the activity is destroyed, decoded images stay cached in the engine
+    private final RequestGroup requests = new RequestGroup();
+    private TiledImageView imageView;
+    // The grid's thumbnail shown as the preview, bound so it isn't reused while shown
+    private ThumbnailMemoryCache.Entry previewEntry = null;
+    private boolean destroyed = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_view_one_photo);
+        engine = ImageEngine.get(this);
 
-        ImageView imageView = findViewById(R.id.main_image);
+        imageView = findViewById(R.id.main_image);
         imageView.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
@@ -33,11 +43,149 @@ public class ViewOnePhotoActivity extends AppCompatActivity {
             Uri photoLocation = intent.getData();
             String action = intent.getAction();
             if(Intent.ACTION_VIEW.equals(action) && photoLocation != null) {
-                Bitmap bmp = BitmapFactory.decodeFile(photoLocation.getPath());
-                imageView.setImageBitmap(bmp);
                 int orientation = intent.getIntExtra("orientation", 0);
-                imageView.setRotation(orientation);
+                long id = intent.getLongExtra("id", -1L);
+                load(photoLocation.getPath(), orientation, id);
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        destroyed = true;
+        imageView.recycle();
+        requests.cancelAll();
+        if(previewEntry != null) {
+            engine.unbind(previewEntry);
+            previewEntry = null;
+        }
+    }
+
+    /**
+     * Shows the grid's thumbnail of the image straight away, then a screen sized decode of the
+     * image, and then allows zoomed in parts of the image to be decoded in tiles.
+     * The thumbnail comes from the engine's memory cache if the grid has it, otherwise the disk
+     * cache, and a screen sized decode from a recent visit to the image is reused.
+     * @param storedOrientation The MediaStore's orientation, used if the file doesn't have one
+     * @param id The MediaStore _ID of the image, or -1 if it isn't known
+     */
+    private void load(final String filename, final int storedOrientation, long id) {
+        final DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+        final int screenWidth = displayMetrics.widthPixels;
+        final int screenHeight = displayMetrics.heightPixels;
+        final ThumbnailMemoryCache.Entry thumbnail = id == -1L ? null
+                : engine.getNearestThumbnail(id, ThumbnailTier.COUNT - 1);
+        if(thumbnail != null) {
+            engine.bind(thumbnail);
+            previewEntry = thumbnail;
+        }
+        final DecodeScheduler scheduler = engine.getScheduler();
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The EXIF header has the size and the true orientation of JPEGs
+                final int width;
+                final int height;
+                final int orientation;
+                ExifReader exif = new ExifReader();
+                if(exif.read(filename)) {
+                    width = exif.getWidth();
+                    height = exif.getHeight();
+                    orientation = exif.getOrientation() != -1 ? exif.getOrientation() : storedOrientation;
+                } else {
+                    BitmapFactory.Options bounds = new BitmapFactory.Options();
+                    bounds.inJustDecodeBounds = true;
+                    BitmapFactory.decodeFile(filename, bounds);
+                    width = bounds.outWidth;
+                    height = bounds.outHeight;
+                    orientation = storedOrientation;
+                }
+                if(width <= 0 || height <= 0) {
+                    return;
+                }
+                final Bitmap preview = thumbnail != null ? thumbnail.bitmap : loadPreview(filename);
+                final boolean sideways = orientation % 180 != 0;
+                final float fitScale = Math.min((float)screenWidth / (sideways ? height : width),
+                        (float)screenHeight / (sideways ? width : height));
+                final int sampleSize = SampleSize.forScale(fitScale);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(destroyed) {
+                            return;
+                        }
+                        imageView.setImage(width, height, orientation);
+                        Bitmap base = engine.getSampledImage(filename, sampleSize);
+                        if(base != null) {
+                            // Seen recently, no need for the preview
+                            imageView.setBase(base, sampleSize);
+                            return;
+                        }
+                        if(preview != null) {
+                            imageView.setPreview(preview);
+                        }
+                        engine.loadSampledImage(filename, sampleSize, DecodeScheduler.PRIORITY_VISIBLE, requests,
+                                new ImageEngine.BitmapCallback() {
+                            @Override
+                            public void onBitmapLoaded(Bitmap base) {
+                                if(base != null && !destroyed) {
+                                    imageView.setBase(base, sampleSize);
+                                }
+                            }
+                        });
+                    }
+                });
+                scheduler.submit(null, DecodeScheduler.PRIORITY_PREFETCH, new DecodeScheduler.Task<BitmapRegionDecoder>() {
+                    @Override
+                    public BitmapRegionDecoder run() {
+                        try {
+                            return BitmapRegionDecoder.newInstance(filename, true);
+                        } catch (IOException e) {
+                            return null;
+                        }
+                    }
+                }, new DecodeScheduler.Callback<BitmapRegionDecoder>() {
+                    @Override
+                    public void onResult(final BitmapRegionDecoder regionDecoder) {
+                        if(regionDecoder == null) {
+                            return;
+                        }
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                if(destroyed) {
+                                    regionDecoder.recycle();
+                                } else {
+                                    imageView.setRegionDecoder(regionDecoder, scheduler);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Gets the largest thumbnail of the image in the disk cache.
+     * Does disk IO so shouldn't be called on the ui thread.
+     * @return The thumbnail or null if none are cached
+     */
+    private Bitmap loadPreview(String filename) {
+        DiskThumbnailCache diskCache = DiskThumbnailCache.getShared(getCacheDir());
+        for(int tier = ThumbnailTier.COUNT - 1; tier >= 0; --tier) {
+            String key = DiskThumbnailCache.getKey(filename, ThumbnailTier.SIZES[tier]);
+            if(key == null) {
+                return null;
+            }
+            if(diskCache.contains(key)) {
+                Bitmap preview = diskCache.get(key, null);
+                if(preview != null) {
+                    return preview;
+                }
             }
         }
+        return null;
     }
 }
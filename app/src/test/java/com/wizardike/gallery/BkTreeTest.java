@@ -0,0 +1,80 @@
+package com.wizardike.gallery;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks searches find exactly the hashes a comparison against every hash finds.
+ */
+public class BkTreeTest {
+    private static long[] randomHashes(Random random, int count) {
+        long[] hashes = new long[count];
+        for(int i = 0; i != count; ++i) {
+            if(i != 0 && random.nextInt(4) == 0) {
+                // Flip a few bits of an earlier hash so there are near and exact matches to find
+                long hash = hashes[random.nextInt(i)];
+                final int flips = random.nextInt(6);
+                for(int flip = 0; flip != flips; ++flip) {
+                    hash ^= 1L << random.nextInt(64);
+                }
+                hashes[i] = hash;
+            } else {
+                hashes[i] = random.nextLong();
+            }
+        }
+        return hashes;
+    }
+
+    private static int[] search(BkTree tree, long hash, int maxDistance) {
+        final int[] found = new int[tree.size()];
+        final int[] foundCount = new int[1];
+        tree.search(hash, maxDistance, new BkTree.Visitor() {
+            @Override
+            public void onMatch(int item) {
+                found[foundCount[0]++] = item;
+            }
+        });
+        int[] result = Arrays.copyOf(found, foundCount[0]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static int[] bruteForceSearch(long[] hashes, long hash, int maxDistance) {
+        int[] found = new int[hashes.length];
+        int foundCount = 0;
+        for(int i = 0; i != hashes.length; ++i) {
+            if(Long.bitCount(hashes[i] ^ hash) <= maxDistance) {
+                found[foundCount++] = i;
+            }
+        }
+        return Arrays.copyOf(found, foundCount);
+    }
+
+    @Test
+    public void searchMatchesBruteForce() {
+        Random random = new Random(42);
+        long[] hashes = randomHashes(random, 2000);
+        BkTree tree = new BkTree(0);
+        for(int i = 0; i != hashes.length; ++i) {
+            tree.add(hashes[i], i);
+        }
+        assertEquals(hashes.length, tree.size());
+
+        for(int maxDistance : new int[] {0, 3, 10, 30}) {
+            for(int i = 0; i != 200; ++i) {
+                final long query = random.nextBoolean() ? hashes[random.nextInt(hashes.length)] : random.nextLong();
+                assertArrayEquals(bruteForceSearch(hashes, query, maxDistance), search(tree, query, maxDistance));
+            }
+        }
+    }
+
+    @Test
+    public void emptyTreeFindsNothing() {
+        BkTree tree = new BkTree(16);
+        assertEquals(0, search(tree, 0L, 64).length);
+    }
+}
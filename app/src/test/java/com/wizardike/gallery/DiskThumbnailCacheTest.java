@@ -0,0 +1,85 @@
+package com.wizardike.gallery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the cache's size survives being closed and opened again, which replays the journal, and
+ * that thumbnails cut short on disk are dropped instead of loaded.
+ */
+public class DiskThumbnailCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteArrayOutputStream encoded(int size) {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(size);
+        for(int i = 0; i != size; ++i) {
+            encoded.write(i);
+        }
+        return encoded;
+    }
+
+    @Test
+    public void sizeIsKeptWhenReopened() {
+        File directory = new File(folder.getRoot(), "thumbnails");
+        DiskThumbnailCache cache = new DiskThumbnailCache(directory, 1024 * 1024);
+        cache.putEncoded("a", encoded(100));
+        cache.putEncoded("b", encoded(200));
+        cache.putEncoded("a", encoded(50));
+        assertEquals(250, cache.size());
+        cache.close();
+
+        for(int i = 0; i != 3; ++i) {
+            cache = new DiskThumbnailCache(directory, 1024 * 1024);
+            assertEquals(250, cache.size());
+            assertTrue(cache.contains("a"));
+            assertTrue(cache.contains("b"));
+            cache.close();
+        }
+    }
+
+    @Test
+    public void removedEntriesStayRemovedWhenReopened() {
+        File directory = new File(folder.getRoot(), "thumbnails");
+        DiskThumbnailCache cache = new DiskThumbnailCache(directory, 1024 * 1024);
+        cache.putEncoded("a", encoded(100));
+        cache.putEncoded("b", encoded(200));
+        cache.remove("a");
+        cache.close();
+
+        cache = new DiskThumbnailCache(directory, 1024 * 1024);
+        assertEquals(200, cache.size());
+        assertFalse(cache.contains("a"));
+        assertFalse(new File(directory, "a").exists());
+        cache.close();
+    }
+
+    @Test
+    public void truncatedThumbnailIsRemoved() throws IOException {
+        File directory = new File(folder.getRoot(), "thumbnails");
+        DiskThumbnailCache cache = new DiskThumbnailCache(directory, 1024 * 1024);
+        cache.putEncoded("a", encoded(100));
+        cache.close();
+        // Like a power cut losing the end of a write after the journal recorded it as finished
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "a"), "rw");
+        try {
+            file.setLength(60);
+        } finally {
+            file.close();
+        }
+
+        cache = new DiskThumbnailCache(directory, 1024 * 1024);
+        assertNull(cache.get("a", null));
+        assertFalse(cache.contains("a"));
+        assertEquals(0, cache.size());
+        cache.close();
+    }
+}
@@ -0,0 +1,54 @@
+package com.wizardike.gallery;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the images joined by searches are grouped with groups and their images newest first.
+ */
+public class DuplicateFinderTest {
+    private static void join(DuplicateFinder.Joiner joiner, int item, int match) {
+        joiner.item = item;
+        joiner.onMatch(match);
+    }
+
+    @Test
+    public void groupsAreOrderedByNewestImage() {
+        DuplicateFinder.Joiner joiner = new DuplicateFinder.Joiner(8);
+        // 6 and 3 are joined through 5, 1 and 7 are a pair, 0, 2 and 4 match nothing
+        join(joiner, 6, 5);
+        join(joiner, 5, 3);
+        join(joiner, 7, 1);
+        join(joiner, 3, 3);
+
+        int[] members = new int[8];
+        int[] groupStarts = joiner.group(members);
+        assertArrayEquals(new int[] {0, 2, 5}, groupStarts);
+        assertArrayEquals(new int[] {1, 7, 3, 5, 6}, Arrays.copyOf(members, 5));
+    }
+
+    @Test
+    public void joiningIsSymmetric() {
+        DuplicateFinder.Joiner forward = new DuplicateFinder.Joiner(4);
+        join(forward, 0, 3);
+        join(forward, 3, 2);
+        DuplicateFinder.Joiner backward = new DuplicateFinder.Joiner(4);
+        join(backward, 2, 3);
+        join(backward, 3, 0);
+
+        int[] forwardMembers = new int[4];
+        int[] backwardMembers = new int[4];
+        assertArrayEquals(forward.group(forwardMembers), backward.group(backwardMembers));
+        assertArrayEquals(forwardMembers, backwardMembers);
+        assertArrayEquals(new int[] {0, 2, 3, 0}, forwardMembers);
+    }
+
+    @Test
+    public void nothingJoinedMakesNoGroups() {
+        DuplicateFinder.Joiner joiner = new DuplicateFinder.Joiner(3);
+        assertArrayEquals(new int[] {0}, joiner.group(new int[3]));
+    }
+}
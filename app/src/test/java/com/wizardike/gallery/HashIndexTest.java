@@ -0,0 +1,93 @@
+package com.wizardike.gallery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks an index finds what it was built with, survives being saved and loaded, and that an
+ * unreadable file loads as an empty index instead of failing.
+ */
+public class HashIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static HashIndex build() {
+        HashIndex.Builder builder = new HashIndex.Builder(0);
+        // Added out of order, like they are when hashed newest first
+        builder.add(30L, 300L, 0x3333L);
+        builder.add(10L, 100L, 0x1111L);
+        builder.add(20L, 200L, -1L);
+        return builder.build();
+    }
+
+    private static void assertIndexed(HashIndex index) {
+        assertEquals(3, index.getCount());
+        assertEquals(0x1111L, index.getHash(index.find(10L, 100L)));
+        assertEquals(-1L, index.getHash(index.find(20L, 200L)));
+        assertEquals(0x3333L, index.getHash(index.find(30L, 300L)));
+        // Changed since it was hashed
+        assertEquals(-1, index.find(20L, 201L));
+        // Never hashed
+        assertEquals(-1, index.find(15L, 100L));
+    }
+
+    @Test
+    public void findsAddedHashes() {
+        assertIndexed(build());
+    }
+
+    @Test
+    public void loadsWhatWasSaved() throws IOException {
+        File file = new File(folder.getRoot(), "hashes");
+        build().save(file);
+        assertIndexed(HashIndex.load(file));
+    }
+
+    @Test
+    public void missingFileLoadsEmpty() {
+        assertEquals(0, HashIndex.load(new File(folder.getRoot(), "missing")).getCount());
+    }
+
+    @Test
+    public void corruptFileLoadsEmpty() throws IOException {
+        File file = new File(folder.getRoot(), "hashes");
+        build().save(file);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(0);
+            randomAccessFile.writeInt(0);
+        } finally {
+            randomAccessFile.close();
+        }
+        assertEquals(0, HashIndex.load(file).getCount());
+    }
+
+    @Test
+    public void truncatedFileLoadsEmpty() throws IOException {
+        File file = new File(folder.getRoot(), "hashes");
+        build().save(file);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(randomAccessFile.length() - 1);
+        } finally {
+            randomAccessFile.close();
+        }
+        assertEquals(0, HashIndex.load(file).getCount());
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] {0x47, 0x61});
+        } finally {
+            out.close();
+        }
+        assertEquals(0, HashIndex.load(file).getCount());
+    }
+}
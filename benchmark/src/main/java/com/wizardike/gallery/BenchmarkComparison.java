@@ -0,0 +1,135 @@
+package com.wizardike.gallery;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files written with -rf csv, printing how much each benchmark changed
+ * and flagging changes bigger than the error of both runs.
+ * Usage: BenchmarkComparison baseline.csv results.csv
+ */
+public class BenchmarkComparison {
+    private static final String PACKAGE_PREFIX = "com.wizardike.gallery.";
+
+    private static final class Result {
+        final double score;
+        final double error;
+        final String unit;
+
+        Result(double score, double error, String unit) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2) {
+            System.err.println("Usage: BenchmarkComparison <baseline.csv> <results.csv>");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> results = read(args[1]);
+        System.out.println(String.format("%-70s %14s %14s %9s", "Benchmark", "Baseline", "Now", "Change"));
+        for(Map.Entry<String, Result> entry : results.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+            if(before == null || !before.unit.equals(now.unit)) {
+                System.out.println(String.format("%-70s %14s %14.3f %9s", entry.getKey(), "-", now.score, "new"));
+                continue;
+            }
+            final double change = (now.score - before.score) / before.score * 100.0;
+            final boolean significant = Math.abs(now.score - before.score) > before.error + now.error;
+            System.out.println(String.format("%-70s %14.3f %14.3f %+8.1f%%%s", entry.getKey(),
+                    before.score, now.score, change, significant ? " *" : ""));
+        }
+        System.out.println("Scores are in each benchmark's unit, * marks changes bigger than the error of both runs");
+    }
+
+    /**
+     * Reads the results in a file, keyed by the benchmark name, mode and parameters.
+     */
+    private static Map<String, Result> read(String filename) throws IOException {
+        LinkedHashMap<String, Result> results = new LinkedHashMap<>();
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            String[] header = parseLine(reader.readLine());
+            final int benchmarkColumn = indexOf(header, "Benchmark");
+            final int modeColumn = indexOf(header, "Mode");
+            final int scoreColumn = indexOf(header, "Score");
+            final int errorColumn = indexOf(header, "Score Error (99.9%)");
+            final int unitColumn = indexOf(header, "Unit");
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] columns = parseLine(line);
+                String name = columns[benchmarkColumn];
+                if(name.startsWith(PACKAGE_PREFIX)) {
+                    name = name.substring(PACKAGE_PREFIX.length());
+                }
+                StringBuilder key = new StringBuilder(name).append(' ').append(columns[modeColumn]);
+                for(int i = unitColumn + 1; i < columns.length; ++i) {
+                    if(!columns[i].isEmpty()) {
+                        key.append(' ').append(header[i].replace("Param: ", "")).append('=').append(columns[i]);
+                    }
+                }
+                results.put(key.toString(), new Result(parseNumber(columns[scoreColumn]),
+                        parseNumber(columns[errorColumn]), columns[unitColumn]));
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    private static int indexOf(String[] header, String column) throws IOException {
+        for(int i = 0; i != header.length; ++i) {
+            if(header[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IOException("Missing column " + column);
+    }
+
+    private static double parseNumber(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            // Single shot results have no error
+            return 0.0;
+        }
+    }
+
+    /**
+     * Splits a line of comma separated values, some of which are quoted.
+     */
+    private static String[] parseLine(String line) throws IOException {
+        if(line == null) {
+            throw new IOException("Empty results file");
+        }
+        ArrayList<String> columns = new ArrayList<>();
+        StringBuilder column = new StringBuilder();
+        boolean quoted = false;
+        for(int i = 0; i != line.length(); ++i) {
+            final char c = line.charAt(i);
+            if(c == '"') {
+                if(quoted && i + 1 != line.length() && line.charAt(i + 1) == '"') {
+                    column.append('"');
+                    ++i;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if(c == ',' && !quoted) {
+                columns.add(column.toString());
+                column.setLength(0);
+            } else {
+                column.append(c);
+            }
+        }
+        columns.add(column.toString());
+        return columns.toArray(new String[columns.size()]);
+    }
+}
@@ -0,0 +1,163 @@
+package com.wizardike.gallery;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Creates synthetic photos and paths for the benchmarks so results don't depend on the files
+ * on the machine running them. Everything is generated from a fixed seed so runs are comparable.
+ */
+final class BenchmarkCorpus {
+    private static final float JPEG_QUALITY = 0.85f;
+    // The size of the thumbnail cameras usually embed in the EXIF header
+    private static final int EXIF_THUMBNAIL_WIDTH = 160;
+    private static final int EXIF_THUMBNAIL_HEIGHT = 120;
+    private static final int EXIF_ORIENTATION_ROTATE_90 = 6;
+
+    private BenchmarkCorpus() {}
+
+    /**
+     * Creates a temporary directory that is deleted when the JVM exits.
+     */
+    static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if(!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    /**
+     * Writes a JPEG that looks like a camera photo: a noisy gradient with an EXIF header holding
+     * an orientation and a 160x120 thumbnail.
+     */
+    static File writePhoto(File directory, int width, int height, long seed) throws IOException {
+        byte[] photo = encodeJpeg(createImage(width, height, seed));
+        byte[] thumbnail = encodeJpeg(createImage(EXIF_THUMBNAIL_WIDTH, EXIF_THUMBNAIL_HEIGHT, seed));
+        byte[] exif = createExifSegment(thumbnail);
+        File file = new File(directory, "IMG_" + width + "x" + height + "_" + seed + ".jpg");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            // The EXIF segment goes straight after the start of image marker
+            out.write(photo, 0, 2);
+            out.write(exif);
+            out.write(photo, 2, photo.length - 2);
+        } finally {
+            out.close();
+        }
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Gets a path like the ones in the MediaStore, spread over directoryCount directories.
+     */
+    static String getPath(int position, int directoryCount) {
+        return "/storage/emulated/0/DCIM/Album" + (position % directoryCount) + "/IMG_" + position + ".jpg";
+    }
+
+    private static BufferedImage createImage(int width, int height, long seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(seed);
+        int[] row = new int[width];
+        for(int y = 0; y != height; ++y) {
+            for(int x = 0; x != width; ++x) {
+                // Noise keeps the encoder from compressing the image unrealistically well
+                int red = (x * 255 / width + random.nextInt(16)) & 0xFF;
+                int green = (y * 255 / height + random.nextInt(16)) & 0xFF;
+                int blue = ((x + y) * 127 / (width + height) + random.nextInt(16)) & 0xFF;
+                row[x] = red << 16 | green << 8 | blue;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(bytes);
+        try {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            out.close();
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Builds an APP1 segment with a little endian TIFF structure holding an orientation in the
+     * first IFD and the location of thumbnail in the second.
+     */
+    private static byte[] createExifSegment(byte[] thumbnail) {
+        final int firstIfd = 8;
+        final int firstIfdLength = 2 + 12 + 4;
+        final int secondIfd = firstIfd + firstIfdLength;
+        final int secondIfdLength = 2 + 2 * 12 + 4;
+        final int thumbnailOffset = secondIfd + secondIfdLength;
+        final int tiffLength = thumbnailOffset + thumbnail.length;
+        final int segmentLength = 2 + 6 + tiffLength;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2 + segmentLength);
+        out.write(0xFF);
+        out.write(0xE1);
+        out.write(segmentLength >> 8);
+        out.write(segmentLength);
+        out.write('E');
+        out.write('x');
+        out.write('i');
+        out.write('f');
+        out.write(0);
+        out.write(0);
+        // TIFF header
+        out.write('I');
+        out.write('I');
+        writeShort(out, 42);
+        writeInt(out, firstIfd);
+        // First IFD, the orientation
+        writeShort(out, 1);
+        writeEntry(out, 0x0112, 3, EXIF_ORIENTATION_ROTATE_90);
+        writeInt(out, secondIfd);
+        // Second IFD, the thumbnail
+        writeShort(out, 2);
+        writeEntry(out, 0x0201, 4, thumbnailOffset);
+        writeEntry(out, 0x0202, 4, thumbnail.length);
+        writeInt(out, 0);
+        out.write(thumbnail, 0, thumbnail.length);
+        return out.toByteArray();
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, int tag, int type, int value) {
+        writeShort(out, tag);
+        writeShort(out, type);
+        writeInt(out, 1);
+        // Values shorter than four bytes are stored at the start of the field
+        writeInt(out, value);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >> 8);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value);
+        writeShort(out, value >> 16);
+    }
+}
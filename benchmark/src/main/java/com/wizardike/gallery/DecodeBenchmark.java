@@ -0,0 +1,113 @@
+package com.wizardike.gallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Measures the steps of making a thumbnail from a photo: reading the EXIF header, and decoding
+ * then center cropping either the embedded thumbnail or a sampled decode of the photo.
+ * Android's decoder isn't available on the JVM so javax.imageio stands in for it, decoding
+ * with the same sample sizes. Compare decode results between runs, not with timings on a phone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    @Param({"640x480", "2048x1536", "4032x3024"})
+    public String photoSize;
+
+    @Param({"128", "256"})
+    public int thumbnailSize;
+
+    private File photo;
+    private final ExifReader exif = new ExifReader();
+    private BufferedImage thumbnail;
+
+    @Setup
+    public void setUp() throws IOException {
+        final int separator = photoSize.indexOf('x');
+        final int width = Integer.parseInt(photoSize.substring(0, separator));
+        final int height = Integer.parseInt(photoSize.substring(separator + 1));
+        photo = BenchmarkCorpus.writePhoto(BenchmarkCorpus.createTempDirectory("decode"), width, height, 1);
+        thumbnail = new BufferedImage(thumbnailSize, thumbnailSize, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Benchmark
+    public int readExifHeader() {
+        exif.read(photo.getPath());
+        return exif.getWidth() + exif.getOrientation();
+    }
+
+    /**
+     * The fast path, taken when the embedded thumbnail is big enough.
+     */
+    @Benchmark
+    public BufferedImage decodeExifThumbnail() throws IOException {
+        exif.read(photo.getPath());
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(exif.getThumbnailData(),
+                exif.getThumbnailOffset(), exif.getThumbnailLength()));
+        return crop(image);
+    }
+
+    /**
+     * The slow path, decoding the photo sampled down to a bit larger than the thumbnail.
+     */
+    @Benchmark
+    public BufferedImage decodeSampled() throws IOException {
+        exif.read(photo.getPath());
+        final int sampleSize = SampleSize.forThumbnail(exif.getWidth(), exif.getHeight(), thumbnailSize);
+        ImageInputStream in = ImageIO.createImageInputStream(photo);
+        ImageReader reader = ImageIO.getImageReaders(in).next();
+        try {
+            reader.setInput(in);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+            return crop(reader.read(0, param));
+        } finally {
+            reader.dispose();
+            in.close();
+        }
+    }
+
+    private BufferedImage crop(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int cropSize = Math.min(width, height);
+        final int left = (width - cropSize) / 2;
+        final int top = (height - cropSize) / 2;
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, thumbnailSize, thumbnailSize,
+                    left, top, left + cropSize, top + cropSize, null);
+        } finally {
+            graphics.dispose();
+        }
+        return thumbnail;
+    }
+}
@@ -0,0 +1,99 @@
+package com.wizardike.gallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to fill the screen with thumbnails while flinging, when the queue
+ * is full of prefetches for rows that were scrolled past.
+ * Decodes are simulated by burning CPU for about as long as a thumbnail decode.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecodeSchedulerBenchmark {
+    // A screen of a 4 column grid
+    private static final int SCREEN_CELLS = 24;
+
+    @Param({"4"})
+    public int threadCount;
+
+    // Prefetches left in the queue by each frame of the fling
+    @Param({"0", "48", "192"})
+    public int staleRequests;
+
+    // Roughly a millisecond of work
+    @Param({"250000"})
+    public long decodeTokens;
+
+    private DecodeScheduler scheduler;
+    private DecodeScheduler.Task<Object> decode;
+    private final ArrayList<DecodeScheduler.Request> stale = new ArrayList<>();
+    private int nextKey = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        scheduler = new DecodeScheduler(threadCount);
+        decode = new DecodeScheduler.Task<Object>() {
+            @Override
+            public Object run() {
+                Blackhole.consumeCPU(decodeTokens);
+                return this;
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Scrolls a frame further: the prefetches of the last frame are cancelled as the adapter
+     * does, and new ones are queued.
+     */
+    @Setup(Level.Invocation)
+    public void scroll() {
+        for(DecodeScheduler.Request request : stale) {
+            request.cancel();
+        }
+        stale.clear();
+        for(int i = 0; i != staleRequests; ++i) {
+            stale.add(scheduler.submit("prefetch" + nextKey++, DecodeScheduler.PRIORITY_PREFETCH, decode, null));
+        }
+    }
+
+    @Benchmark
+    public void fillScreenWhileFlinging() throws InterruptedException {
+        final CountDownLatch shown = new CountDownLatch(SCREEN_CELLS);
+        DecodeScheduler.Callback<Object> callback = new DecodeScheduler.Callback<Object>() {
+            @Override
+            public void onResult(Object result) {
+                shown.countDown();
+            }
+        };
+        for(int i = 0; i != SCREEN_CELLS; ++i) {
+            scheduler.submit("visible" + nextKey++, DecodeScheduler.PRIORITY_VISIBLE, decode, callback);
+        }
+        shown.await();
+    }
+}
@@ -0,0 +1,60 @@
+package com.wizardike.gallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of submitting and cancelling a request, done for every cell bound and every
+ * prefetch that scrolls out of range.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeSchedulerOverheadBenchmark {
+    private DecodeScheduler scheduler;
+    private final DecodeScheduler.Task<Object> noop = new DecodeScheduler.Task<Object>() {
+        @Override
+        public Object run() {
+            return null;
+        }
+    };
+    private int nextKey = 0;
+
+    @Setup
+    public void setUp() {
+        scheduler = new DecodeScheduler(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Benchmark
+    public void submitAndCancel() {
+        scheduler.submit(null, DecodeScheduler.PRIORITY_PREFETCH, noop, null).cancel();
+    }
+
+    @Benchmark
+    public void submitDuplicateAndCancel() {
+        final String key = "cell" + (nextKey++ & 63);
+        DecodeScheduler.Request first = scheduler.submit(key, DecodeScheduler.PRIORITY_PREFETCH, noop, null);
+        DecodeScheduler.Request second = scheduler.submit(key, DecodeScheduler.PRIORITY_VISIBLE, noop, null);
+        first.cancel();
+        second.cancel();
+    }
+}
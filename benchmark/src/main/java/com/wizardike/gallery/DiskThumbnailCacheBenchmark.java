@@ -0,0 +1,114 @@
+package com.wizardike.gallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures opening the disk cache and checking it for thumbnails that are and aren't cached.
+ * A lookup includes making the key, which reads the size and modified time of the photo.
+ * Thumbnails can't be encoded or decoded without Android, so the cache is filled by writing its
+ * journal directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DiskThumbnailCacheBenchmark {
+    // Must match the journal header written by DiskThumbnailCache
+    private static final String JOURNAL_HEADER = "wizardike.gallery.DiskThumbnailCache\n2\n";
+    private static final int CACHED_SIZE = 256;
+    private static final int UNCACHED_SIZE = 512;
+    private static final long MAX_SIZE = 64 * 1024 * 1024;
+    private static final int THUMBNAIL_BYTES = 12 * 1024;
+
+    @Param({"1000", "5000"})
+    public int entryCount;
+
+    private File cacheDirectory;
+    private String[] photos;
+    private DiskThumbnailCache cache;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        File directory = BenchmarkCorpus.createTempDirectory("cache");
+        File photoDirectory = new File(directory, "photos");
+        cacheDirectory = new File(directory, "thumbnails");
+        if(!photoDirectory.mkdir() || !cacheDirectory.mkdir()) {
+            throw new IOException("Unable to create the benchmark directories");
+        }
+        photos = new String[entryCount];
+        Writer journal = new FileWriter(new File(cacheDirectory, "journal"));
+        try {
+            journal.write(JOURNAL_HEADER);
+            for(int i = 0; i != entryCount; ++i) {
+                File photo = new File(photoDirectory, "IMG_" + i + ".jpg");
+                FileOutputStream out = new FileOutputStream(photo);
+                out.write(i);
+                out.close();
+                photos[i] = photo.getPath();
+                journal.write("CLEAN " + DiskThumbnailCache.getKey(photos[i], CACHED_SIZE) + " " + THUMBNAIL_BYTES + "\n");
+            }
+        } finally {
+            journal.close();
+        }
+        cache = new DiskThumbnailCache(cacheDirectory, MAX_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+        deleteRecursively(cacheDirectory.getParentFile());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long open() {
+        DiskThumbnailCache opened = new DiskThumbnailCache(cacheDirectory, MAX_SIZE);
+        opened.close();
+        return opened.size();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean hit() {
+        final String photo = photos[next++ % entryCount];
+        return cache.contains(DiskThumbnailCache.getKey(photo, CACHED_SIZE));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean miss() {
+        final String photo = photos[next++ % entryCount];
+        return cache.contains(DiskThumbnailCache.getKey(photo, UNCACHED_SIZE));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,93 @@
+package com.wizardike.gallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building and loading the index of every image on the phone, the work done on every start.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Thread)
+public class MediaIndexBenchmark {
+    static final int DIRECTORY_COUNT = 200;
+
+    @Param({"10000", "100000", "1000000"})
+    public int count;
+
+    private char[][] paths;
+    private MediaIndex index;
+    private File savedIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        paths = new char[count][];
+        for(int i = 0; i != count; ++i) {
+            paths[i] = BenchmarkCorpus.getPath(i, DIRECTORY_COUNT).toCharArray();
+        }
+        index = build(paths, 0);
+        savedIndex = new File(BenchmarkCorpus.createTempDirectory("index"), "media_index");
+        savedIndex.deleteOnExit();
+        index.save(savedIndex);
+    }
+
+    /**
+     * Builds an index like a MediaStore query, newest first, with an image for each path.
+     * @param changedEvery Every changedEvery'th image gets a new modified date, or none if 0
+     */
+    static MediaIndex build(char[][] paths, int changedEvery) {
+        final int size = paths.length;
+        MediaIndex.Builder builder = new MediaIndex.Builder(size);
+        for(int i = 0; i != size; ++i) {
+            final long dateAdded = 1500000000L + size - i;
+            long dateModified = dateAdded;
+            if(changedEvery != 0 && i % changedEvery == 0) {
+                ++dateModified;
+            }
+            final char[] path = paths[i];
+            builder.add(size - i, dateAdded, dateModified, 0, 4032, 3024, path, path.length);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public MediaIndex buildIndex() {
+        return build(paths, 0);
+    }
+
+    /**
+     * Loading on start, then touching every path once so the whole mapped file is read.
+     */
+    @Benchmark
+    public int loadAndScan() {
+        MediaIndex loaded = MediaIndex.load(savedIndex);
+        int equalCount = 0;
+        for(int i = 0, size = loaded.getCount(); i != size; ++i) {
+            if(loaded.pathEquals(i, index, i)) {
+                ++equalCount;
+            }
+        }
+        return equalCount;
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        index.save(savedIndex);
+    }
+}
@@ -0,0 +1,56 @@
+package com.wizardike.gallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures finding the stale thumbnails when PagedMediaSource refreshes its window of pages after
+ * a MediaStore change. The window is the same size however many images there are, so unlike
+ * MediaIndexBenchmark this doesn't depend on the size of the library.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MediaIndexRefreshBenchmark {
+    // The images in PagedMediaSource's window, the page shown and one either side of it
+    private static final int WINDOW_SIZE = 3 * 256;
+
+    // Every changedEvery'th image in the window changed since it was loaded
+    @Param({"100", "1"})
+    public int changedEvery;
+
+    private MediaIndex window;
+    private MediaIndex changedWindow;
+
+    @Setup
+    public void setUp() {
+        char[][] paths = new char[WINDOW_SIZE][];
+        for(int i = 0; i != WINDOW_SIZE; ++i) {
+            paths[i] = BenchmarkCorpus.getPath(i, MediaIndexBenchmark.DIRECTORY_COUNT).toCharArray();
+        }
+        window = MediaIndexBenchmark.build(paths, 0);
+        changedWindow = MediaIndexBenchmark.build(paths, changedEvery);
+    }
+
+    /**
+     * The stale thumbnail check a refresh runs over the reloaded window, alongside DiffUtil.
+     */
+    @Benchmark
+    public long[] findStaleIds() {
+        return window.findStaleIds(0, window.getCount(), changedWindow);
+    }
+}
@@ -0,0 +1,55 @@
+package com.wizardike.gallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures working out the sample sizes of thumbnail and full image decodes, run once per decode.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SampleSizeBenchmark {
+    private static final int IMAGE_COUNT = 1024;
+
+    private final int[] widths = new int[IMAGE_COUNT];
+    private final int[] heights = new int[IMAGE_COUNT];
+    private final float[] scales = new float[IMAGE_COUNT];
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for(int i = 0; i != IMAGE_COUNT; ++i) {
+            widths[i] = 320 + random.nextInt(8000);
+            heights[i] = 240 + random.nextInt(6000);
+            scales[i] = 0.01f + random.nextFloat() * 2.0f;
+        }
+    }
+
+    @Benchmark
+    public int forThumbnail() {
+        final int i = next++ & (IMAGE_COUNT - 1);
+        return SampleSize.forThumbnail(widths[i], heights[i], ThumbnailTier.SIZES[i & 3]);
+    }
+
+    @Benchmark
+    public int forScale() {
+        final int i = next++ & (IMAGE_COUNT - 1);
+        return SampleSize.forScale(scales[i]);
+    }
+}